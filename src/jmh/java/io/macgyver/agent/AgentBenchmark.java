@@ -0,0 +1,56 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Per-message cost of the agent itself: decorating a status with the default
+ * decorators, and a whole check-in delivered to an in-memory sender.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+	ObjectMapper mapper = new ObjectMapper();
+	MacGyverAgent agent;
+	MemorySender sender;
+
+	@Setup
+	public void setup() {
+		sender = new MemorySender();
+		agent = new MacGyverAgent();
+		agent.withSender(sender);
+	}
+
+	@Benchmark
+	public ObjectNode decorate() {
+		ObjectNode status = mapper.createObjectNode();
+		agent.decorate(status);
+		return status;
+	}
+
+	@Benchmark
+	public int reportCheckIn() {
+		agent.reportCheckIn();
+		int size = sender.eventList.size();
+		sender.eventList.clear();
+		return size;
+	}
+}
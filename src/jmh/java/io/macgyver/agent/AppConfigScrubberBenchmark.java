@@ -0,0 +1,67 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Scrubbing a config dump shaped like a Spring environment: mostly dotted
+ * property names, some environment variables, and a few secrets. Scrubbing
+ * the same array again costs the same as the first time, since every key is
+ * matched either way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppConfigScrubberBenchmark {
+
+	static final String[] PREFIXES = { "spring.datasource.", "server.", "management.endpoint.", "logging.level.io.",
+			"SPRING_APPLICATION_", "AWS_", "app.feature.", "JAVA_" };
+	static final String[] SUFFIXES = { "url", "port", "enabled", "timeout", "name", "max_size", "path", "level" };
+	static final String[] SECRETS = { "db_password", "API_KEY", "session_token" };
+
+	@Param({ "10000", "50000" })
+	int entryCount;
+
+	@Param({ "", ".*secret.*" })
+	String extraRegex;
+
+	ArrayNode appConfigs;
+
+	@Setup
+	public void setup() {
+		ObjectMapper mapper = new ObjectMapper();
+		appConfigs = mapper.createArrayNode();
+		for (int i = 0; i < entryCount; i++) {
+			String key = PREFIXES[i % PREFIXES.length] + "group" + (i / 64) + "."
+					+ (i % 20 == 0 ? SECRETS[i % SECRETS.length] : SUFFIXES[i % SUFFIXES.length]);
+			ObjectNode config = mapper.createObjectNode();
+			config.put("key", key);
+			config.put("value", "value-" + i);
+			appConfigs.add(config);
+		}
+	}
+
+	@Benchmark
+	public ArrayNode scrub() {
+		AppConfigScrubber.scrub(appConfigs, extraRegex);
+		return appConfigs;
+	}
+}
@@ -0,0 +1,136 @@
+package io.macgyver.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Thread dumps with the given number of extra live threads, each parked a few
+ * frames deep: capturing and rendering a text dump, and the gzip and base64
+ * encoding that reportThreadDump applies to a captured dump, both streamed and
+ * as a String.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadDumpBenchmark {
+
+	@Param({ "100", "1000", "5000" })
+	int threadCount;
+
+	ThreadDump threadDump;
+	ThreadInfo[] captured;
+	CountDownLatch release;
+	List<Thread> threads = new ArrayList<>();
+
+	@Setup
+	public void setup() throws InterruptedException {
+		release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			Thread t = new Thread(() -> park(started, 5), "benchmark-" + i);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		started.await();
+		threadDump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		captured = threadDump.capture();
+	}
+
+	void park(CountDownLatch started, int depth) {
+		if (depth > 0) {
+			park(started, depth - 1);
+			return;
+		}
+		started.countDown();
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			// done
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		release.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		threads.clear();
+	}
+
+	@Benchmark
+	public long dump() {
+		CountingWriter w = new CountingWriter();
+		threadDump.dump(w);
+		return w.count;
+	}
+
+	@Benchmark
+	public long encodeStreamed() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		new EncodedThreadDump(threadDump, captured).writeTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public String encodeAsString() throws IOException {
+		return new EncodedThreadDump(threadDump, captured).asString();
+	}
+
+	static class CountingWriter extends Writer {
+
+		long count;
+
+		@Override
+		public void write(char[] buf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package io.macgyver.agent.sender.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.agent.MacGyverAgent;
+import io.macgyver.agent.codec.GzipCodec;
+import io.macgyver.agent.sender.WireFormat;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A check-in round trip through HttpAgentSender to a local MockWebServer that
+ * answers every request with 200, per wire format and with or without gzip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpAgentSenderBenchmark {
+
+	@Param({ "JSON", "SMILE" })
+	WireFormat wireFormat;
+
+	@Param({ "false", "true" })
+	boolean gzip;
+
+	MockWebServer server;
+	HttpAgentSender sender;
+	ObjectNode status;
+
+	@Setup
+	public void setup() throws IOException {
+		server = new MockWebServer();
+		// the server keeps every request it sees, so don't keep the bodies
+		server.setBodyLimit(0);
+		server.setDispatcher(new Dispatcher() {
+
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				return new MockResponse().setBody("{}");
+			}
+		});
+		server.start();
+
+		sender = new HttpAgentSender().withBaseUrl(server.url("/").toString()).withWireFormat(wireFormat);
+		if (gzip) {
+			sender.withCodec(new GzipCodec());
+		}
+
+		status = new ObjectMapper().createObjectNode();
+		new MacGyverAgent().decorate(status);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public void sendCheckIn() throws InterruptedException {
+		sender.sendCheckIn(status);
+		server.takeRequest();
+	}
+}
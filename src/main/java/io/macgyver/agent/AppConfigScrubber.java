@@ -1,11 +1,13 @@
 package io.macgyver.agent;
 
-import com.amazonaws.util.StringUtils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 /**
  * Created by atsui on 6/23/17.
@@ -15,18 +17,121 @@ public class AppConfigScrubber {
     private static String APP_CONFIG_SCRUB_REGEX = ".*_(password|key|token)";
     private static String SCRUBBED_VALUE = "*****";
 
+    // APP_CONFIG_SCRUB_REGEX as suffixes, lower case
+    private static final String[] SCRUB_SUFFIXES = { "_password", "_key", "_token" };
+
+    static final int PARALLEL_THRESHOLD = 8192;
+    static final int MAX_MATCHERS = 16;
+    static final int MAX_MEMOIZED_KEYS = 65536;
+
+    private static final Pattern NUMBERED_BACK_REFERENCE = Pattern.compile("\\\\[1-9]");
+
+    private static final ConcurrentMap<String, KeyMatcher> matchers = new ConcurrentHashMap<>();
+
     static void scrub(ArrayNode appConfigs, String extraScrubRegex) {
-        // Determine the scrub pattern
-        String scrubRegex = APP_CONFIG_SCRUB_REGEX;
-        if (!StringUtils.isNullOrEmpty(extraScrubRegex)) {
-            scrubRegex += "|" + extraScrubRegex;
+        KeyMatcher matcher = getKeyMatcher(extraScrubRegex);
+
+        if (appConfigs.size() >= PARALLEL_THRESHOLD) {
+            // each config is its own node, so they can be scrubbed independently
+            IntStream.range(0, appConfigs.size()).parallel().forEach(i -> scrub(appConfigs.get(i), matcher));
+        } else {
+            for (JsonNode appConfig : appConfigs) {
+                scrub(appConfig, matcher);
+            }
+        }
+    }
+
+    private static void scrub(JsonNode appConfig, KeyMatcher matcher) {
+        if (matcher.matches(appConfig.get("key").asText())) {
+            ((ObjectNode)appConfig).put("value", SCRUBBED_VALUE);
+        }
+    }
+
+    static KeyMatcher getKeyMatcher(String extraScrubRegex) {
+        String extra = extraScrubRegex == null ? "" : extraScrubRegex;
+        KeyMatcher matcher = matchers.get(extra);
+        if (matcher == null) {
+            if (matchers.size() >= MAX_MATCHERS) {
+                matchers.clear();
+            }
+            matcher = new KeyMatcher(extra);
+            KeyMatcher existing = matchers.putIfAbsent(extra, matcher);
+            if (existing != null) {
+                matcher = existing;
+            }
+        }
+        return matcher;
+    }
+
+    /**
+     * Matches keys as APP_CONFIG_SCRUB_REGEX, or'ed with an extra regex, would.  The default
+     * rule is a suffix check, the extra regex is only compiled once, and results are
+     * remembered per key, since config dumps repeat the same keys.
+     */
+    static class KeyMatcher {
+
+        final Pattern extraPattern;
+        final ConcurrentMap<String, Boolean> results = new ConcurrentHashMap<>();
+
+        KeyMatcher(String extraScrubRegex) {
+            if (extraScrubRegex.isEmpty()) {
+                extraPattern = null;
+            } else if (NUMBERED_BACK_REFERENCE.matcher(extraScrubRegex).find()) {
+                // group numbers in the extra regex are shifted by the default rule's group
+                extraPattern = Pattern.compile(APP_CONFIG_SCRUB_REGEX + "|" + extraScrubRegex, Pattern.CASE_INSENSITIVE);
+            } else {
+                extraPattern = Pattern.compile(extraScrubRegex, Pattern.CASE_INSENSITIVE);
+            }
+        }
+
+        boolean matches(String key) {
+            Boolean result = results.get(key);
+            if (result == null) {
+                result = matchesDefault(key) || (extraPattern != null && extraPattern.matcher(key).matches());
+                if (results.size() >= MAX_MEMOIZED_KEYS) {
+                    results.clear();
+                }
+                results.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    static boolean matchesDefault(String key) {
+        for (String suffix : SCRUB_SUFFIXES) {
+            if (endsWithIgnoreAsciiCase(key, suffix)) {
+                // '.' in the regex doesn't match line terminators
+                int prefixLength = key.length() - suffix.length();
+                for (int i = 0; i < prefixLength; i++) {
+                    if (isLineTerminator(key.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
         }
-        Pattern scrubPattern = Pattern.compile(scrubRegex, Pattern.CASE_INSENSITIVE);
+        return false;
+    }
 
-        for (JsonNode appConfig : appConfigs) {
-            if (scrubPattern.matcher(appConfig.get("key").asText()).matches()) {
-                ((ObjectNode)appConfig).put("value", SCRUBBED_VALUE);
+    // CASE_INSENSITIVE without UNICODE_CASE only folds US-ASCII, unlike String.regionMatches
+    private static boolean endsWithIgnoreAsciiCase(String key, String lowerCaseSuffix) {
+        int offset = key.length() - lowerCaseSuffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseSuffix.length(); i++) {
+            char c = key.charAt(offset + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCaseSuffix.charAt(i)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
     }
 }
@@ -0,0 +1,165 @@
+package io.macgyver.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.agent.MacGyverAgent.AppEventType;
+
+/**
+ * An app event that writes itself to a <code>JsonGenerator</code> instead of
+ * being built as an <code>ObjectNode</code> tree. Attributes are kept as
+ * names and values in two arrays, in the order they were first set, so an
+ * event produces exactly the JSON that {@link AppEventBuilder} would.
+ *
+ * An AppEvent is not thread safe, but it can be reused: call
+ * {@link #clear()}, set the attributes and report it again.
+ * {@link MacGyverAgent#reportAppEvent(AppEvent)} keeps a copy of the arrays,
+ * not the event.
+ */
+public class AppEvent {
+
+	static final JsonFactory jsonFactory = new JsonFactory();
+	static final ObjectMapper mapper = new ObjectMapper();
+
+	String[] names;
+	String[] values;
+	int size = 0;
+
+	public AppEvent() {
+		this(8);
+	}
+
+	AppEvent(int capacity) {
+		this.names = new String[capacity];
+		this.values = new String[capacity];
+	}
+
+	public AppEvent withEventType(AppEventType type) {
+		return set("eventType", type.toString());
+	}
+
+	public AppEvent withAppId(String id) {
+		return set("appId", id);
+	}
+
+	public AppEvent withMessage(String message) {
+		return set("message", message);
+	}
+
+	public AppEvent withIp(String ip) {
+		return set("ip", ip);
+	}
+
+	public AppEvent withDnsName(String dns) {
+		return set("dnsName", dns);
+	}
+
+	public AppEvent withHost(String host) {
+		return set("host", host);
+	}
+
+	public AppEvent withAttribute(String key, String val) {
+		return set(key, val);
+	}
+
+	AppEvent set(String name, String value) {
+		for (int i = 0; i < size; i++) {
+			if (names[i] == name || names[i].equals(name)) {
+				values[i] = value;
+				return this;
+			}
+		}
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = name;
+		values[size] = value;
+		size++;
+		return this;
+	}
+
+	public String get(String name) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(name)) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all attributes, keeping the arrays for reuse.
+	 */
+	public AppEvent clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		return this;
+	}
+
+	public AppEvent copy() {
+		AppEvent copy = new AppEvent(Math.max(1, size));
+		System.arraycopy(names, 0, copy.names, 0, size);
+		System.arraycopy(values, 0, copy.values, 0, size);
+		copy.size = size;
+		return copy;
+	}
+
+	public void writeTo(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		for (int i = 0; i < size; i++) {
+			if (values[i] == null) {
+				gen.writeNullField(names[i]);
+			} else {
+				gen.writeStringField(names[i], values[i]);
+			}
+		}
+		gen.writeEndObject();
+	}
+
+	public byte[] toJsonBytes() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(estimateSize(), 64 * 1024));
+		try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+			writeTo(gen);
+		} catch (IOException e) {
+			throw new AgentException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * The event as a tree, for senders that only accept trees.
+	 */
+	public ObjectNode toObjectNode() {
+		ObjectNode n = mapper.createObjectNode();
+		for (int i = 0; i < size; i++) {
+			n.put(names[i], values[i]);
+		}
+		return n;
+	}
+
+	long estimateSize() {
+		long bytes = 2;
+		for (int i = 0; i < size; i++) {
+			bytes += names[i].length() + (values[i] == null ? 4 : values[i].length() + 2) + 4;
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toJsonBytes(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,156 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.macgyver.agent.MacGyverAgent.OverflowPolicy;
+
+/**
+ * Hands messages off from the reporting thread to a dedicated dispatcher
+ * thread through a bounded ring buffer. The queue is bounded both by slot count
+ * and by the estimated number of bytes held.
+ */
+class AsyncDispatcher {
+
+	static Logger logger = LoggerFactory.getLogger(AsyncDispatcher.class);
+
+	static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	final RingBuffer<Envelope> queue;
+	final long maxQueuedBytes;
+	final OverflowPolicy overflowPolicy;
+	final long blockTimeoutNanos;
+	final Consumer<Envelope> sink;
+
+	final AtomicLong queuedBytes = new AtomicLong();
+	final AtomicLong droppedCount = new AtomicLong();
+
+	volatile boolean running = true;
+	volatile boolean idle = false;
+	final Thread thread;
+
+	AsyncDispatcher(int capacity, long maxQueuedBytes, OverflowPolicy overflowPolicy, long blockTimeoutNanos,
+			Consumer<Envelope> sink) {
+		this.queue = new RingBuffer<>(capacity);
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutNanos = blockTimeoutNanos;
+		this.sink = sink;
+
+		thread = new Thread(this::dispatchLoop, "macgyver-agent-dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Enqueues a message, applying the overflow policy if the queue is full.
+	 *
+	 * @return true if the message was queued
+	 */
+	boolean offer(Envelope e) {
+		if (!running) {
+			return drop(e);
+		}
+		long bytes = e.getEstimatedBytes();
+		if (bytes > maxQueuedBytes) {
+			return drop(e);
+		}
+		long deadline = 0;
+		for (;;) {
+			long queued = queuedBytes.get();
+			if (queued + bytes <= maxQueuedBytes) {
+				if (!queuedBytes.compareAndSet(queued, queued + bytes)) {
+					// another producer got in first; check again
+					continue;
+				}
+				if (queue.offer(e)) {
+					if (idle) {
+						LockSupport.unpark(thread);
+					}
+					return true;
+				}
+				queuedBytes.addAndGet(-bytes);
+			}
+
+			switch (overflowPolicy) {
+			case DROP_OLDEST:
+				Envelope oldest = queue.poll();
+				if (oldest != null) {
+					queuedBytes.addAndGet(-oldest.getEstimatedBytes());
+					drop(oldest);
+				}
+				break;
+			case BLOCK:
+				if (deadline == 0) {
+					deadline = System.nanoTime() + blockTimeoutNanos;
+				} else if (System.nanoTime() - deadline >= 0) {
+					return drop(e);
+				}
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				break;
+			default:
+				return drop(e);
+			}
+		}
+	}
+
+	private boolean drop(Envelope e) {
+		long count = droppedCount.incrementAndGet();
+		if (count == 1 || count % 1000 == 0) {
+			logger.warn("async dispatch queue is full -- dropped {} message(s) so far (last was {})", count, e.type);
+		}
+		return false;
+	}
+
+	void dispatchLoop() {
+		while (running || !queue.isEmpty()) {
+			Envelope e = queue.poll();
+			if (e == null) {
+				idle = true;
+				if (queue.isEmpty() && running) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				idle = false;
+				continue;
+			}
+			queuedBytes.addAndGet(-e.getEstimatedBytes());
+			try {
+				sink.accept(e);
+			} catch (Throwable t) {
+				logger.warn("uncaught exception", t);
+			}
+		}
+	}
+
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting new messages and waits for queued messages to be
+	 * delivered.
+	 */
+	void stop(long timeout, TimeUnit unit) {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(unit.toMillis(timeout));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) {
+			logger.warn("async dispatcher stopped with {} undelivered message(s)", queue.size());
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package io.macgyver.agent;
+
+/**
+ * Thrown by a sender when the server asks the agent to slow down, e.g. with a
+ * 429 or 503 response.
+ */
+public class BackpressureException extends AgentException {
+
+	private static final long serialVersionUID = 1L;
+
+	final long retryAfterMillis;
+
+	/**
+	 * @param retryAfterMillis
+	 *            how long the server asked the agent to wait, or -1 if it
+	 *            didn't say
+	 */
+	public BackpressureException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+}
@@ -0,0 +1,162 @@
+package io.macgyver.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ThreadInfo;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.macgyver.agent.ThreadDump.Format;
+import io.macgyver.agent.codec.UnclosableOutputStream;
+
+/**
+ * A captured thread dump that is rendered, gzipped and base64-encoded only
+ * when it is written out. Senders that implement
+ * {@link MacGyverAgent.StreamingSender} write it straight to the wire, so the
+ * dump never has to be held in memory as a whole.
+ */
+public class EncodedThreadDump {
+
+	public static final String FIELD_NAME = "threadDumpGzip";
+	public static final String STRUCTURED_FIELD_NAME = "threadDumpStructuredGzip";
+
+	static final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	final ThreadDump threadDump;
+	final ThreadInfo[] threads;
+	final Format format;
+	final ThreadDumpDeltaTracker.Delta delta;
+
+	EncodedThreadDump(ThreadDump threadDump, ThreadInfo[] threads) {
+		this(threadDump, threads, Format.TEXT);
+	}
+
+	EncodedThreadDump(ThreadDump threadDump, ThreadInfo[] threads, Format format) {
+		this.threadDump = threadDump;
+		this.threads = threads;
+		this.format = format;
+		this.delta = null;
+	}
+
+	/**
+	 * A structured dump that only carries the threads in the delta.
+	 */
+	EncodedThreadDump(ThreadDump threadDump, ThreadDumpDeltaTracker.Delta delta) {
+		this.threadDump = threadDump;
+		this.threads = delta.threads;
+		this.format = Format.STRUCTURED;
+		this.delta = delta;
+	}
+
+	/**
+	 * Name of the attribute the encoded dump is sent as. Text dumps keep the
+	 * original name; structured dumps use a separate one so that receivers
+	 * expecting text never see JSON.
+	 */
+	public String getFieldName() {
+		return format == Format.STRUCTURED ? STRUCTURED_FIELD_NAME : FIELD_NAME;
+	}
+
+	/**
+	 * Writes the base64 of the gzipped dump, which is plain ASCII, to
+	 * <code>out</code>. May be called more than once; the output is the same
+	 * each time. <code>out</code> is left open.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Like {@link #writeTo(OutputStream)}, with the given gzip level. Senders
+	 * whose request body is compressed again on the way out pass
+	 * {@link Deflater#NO_COMPRESSION}: the result is still valid gzip, it just
+	 * isn't compressed twice.
+	 */
+	public void writeTo(OutputStream out, int level) throws IOException {
+		OutputStream base64 = Base64.getEncoder().wrap(new UnclosableOutputStream(out));
+		writeGzipTo(base64, level);
+		base64.close();
+	}
+
+	/**
+	 * Writes the gzipped dump, without base64, to <code>out</code>. The output
+	 * is the same each time. <code>out</code> is left open.
+	 */
+	public void writeGzipTo(OutputStream out) throws IOException {
+		writeGzipTo(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public void writeGzipTo(OutputStream out, int level) throws IOException {
+		GZIPOutputStream gz = new GZIPOutputStream(new UnclosableOutputStream(out), 8192) {
+			{
+				def.setLevel(level);
+			}
+		};
+		if (format == Format.STRUCTURED) {
+			JsonGenerator gen = jsonFactory.createGenerator(gz);
+			gen.writeStartObject();
+			if (delta != null) {
+				delta.writeHeaderFields(gen);
+			}
+			threadDump.writeStructuredFields(threads, gen);
+			gen.writeEndObject();
+			gen.close();
+			gz.close();
+		} else {
+			OutputStreamWriter osw = new OutputStreamWriter(gz);
+			threadDump.dump(threads, osw);
+			osw.close();
+		}
+	}
+
+	/**
+	 * Writes the gzipped dump as a binary value, for generators of binary
+	 * formats like Smile or CBOR. These need the length up front, so the dump
+	 * is gzipped once into memory on the calling thread; only the compressed
+	 * bytes are held.
+	 */
+	public void writeBinaryTo(JsonGenerator gen) throws IOException {
+		writeBinaryTo(gen, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public void writeBinaryTo(JsonGenerator gen, int level) throws IOException {
+		Bytes bytes = new Bytes();
+		writeGzipTo(bytes, level);
+		gen.writeBinary(bytes.buffer(), 0, bytes.size());
+	}
+
+	static class Bytes extends ByteArrayOutputStream {
+
+		Bytes() {
+			super(8192);
+		}
+
+		byte[] buffer() {
+			// no copy, the generator only reads it
+			return buf;
+		}
+	}
+
+	/**
+	 * The encoded dump as a String, for senders that can't stream it.
+	 */
+	public String asString() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeTo(baos);
+		return new String(baos.toByteArray());
+	}
+
+	long estimateSize() {
+		long size = 0;
+		for (ThreadInfo t : threads) {
+			size += 256 + t.getStackTrace().length * 96;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,130 @@
+package io.macgyver.agent;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.agent.MacGyverAgent.MessageType;
+
+/**
+ * A message on its way from the agent to the senders.
+ */
+class Envelope {
+
+	final MessageType type;
+	final ObjectNode data;
+	final EncodedThreadDump threadDump;
+	final AppEvent event;
+	final int attempt;
+
+	long estimatedBytes = -1;
+	ObjectNode dataWithThreadDump;
+
+	Envelope(MessageType type, ObjectNode data) {
+		this(type, data, null);
+	}
+
+	Envelope(MessageType type, ObjectNode data, EncodedThreadDump threadDump) {
+		this(type, data, threadDump, null, 1);
+	}
+
+	/**
+	 * An app event that is written straight to the wire; <code>data</code> is
+	 * null.
+	 */
+	Envelope(AppEvent event) {
+		this(MessageType.APP_EVENT, null, null, event, 1);
+	}
+
+	private Envelope(MessageType type, ObjectNode data, EncodedThreadDump threadDump, AppEvent event,
+			int attempt) {
+		this.type = type;
+		this.data = data;
+		this.threadDump = threadDump;
+		this.event = event;
+		this.attempt = attempt;
+	}
+
+	/**
+	 * The same message for the next delivery attempt.
+	 */
+	synchronized Envelope nextAttempt() {
+		Envelope next = new Envelope(type, data, threadDump, event, attempt + 1);
+		next.estimatedBytes = estimatedBytes;
+		next.dataWithThreadDump = dataWithThreadDump;
+		return next;
+	}
+
+	/**
+	 * The same message with other data, e.g. a copy with added attributes.
+	 */
+	Envelope withData(ObjectNode data) {
+		return new Envelope(type, data, threadDump, event, attempt);
+	}
+
+	long getEstimatedBytes() {
+		if (estimatedBytes < 0 && event != null) {
+			estimatedBytes = event.estimateSize();
+		} else if (estimatedBytes < 0) {
+			estimatedBytes = estimateSize(data) + (threadDump == null ? 0 : threadDump.estimateSize());
+		}
+		return estimatedBytes;
+	}
+
+	/**
+	 * The data with the encoded thread dump (if any) added as an attribute, for
+	 * senders that can't stream it, or the app event as a tree. Built once and
+	 * shared.
+	 */
+	synchronized ObjectNode getDataWithThreadDump() throws IOException {
+		if (event != null) {
+			if (dataWithThreadDump == null) {
+				dataWithThreadDump = event.toObjectNode();
+			}
+			return dataWithThreadDump;
+		}
+		if (threadDump == null) {
+			return data;
+		}
+		if (dataWithThreadDump == null) {
+			ObjectNode n = data.objectNode();
+			n.setAll(data);
+			n.put(threadDump.getFieldName(), threadDump.asString());
+			dataWithThreadDump = n;
+		}
+		return dataWithThreadDump;
+	}
+
+	/**
+	 * Cheap approximation of the serialized size of a tree. Only string lengths
+	 * and structure are counted, nothing is serialized.
+	 */
+	static long estimateSize(JsonNode n) {
+		if (n == null) {
+			return 4;
+		}
+		if (n.isObject()) {
+			long size = 2;
+			Iterator<Entry<String, JsonNode>> t = n.fields();
+			while (t.hasNext()) {
+				Entry<String, JsonNode> entry = t.next();
+				size += entry.getKey().length() + 4 + estimateSize(entry.getValue());
+			}
+			return size;
+		}
+		if (n.isArray()) {
+			long size = 2;
+			for (JsonNode child : n) {
+				size += estimateSize(child) + 1;
+			}
+			return size;
+		}
+		if (n.isTextual()) {
+			return n.textValue().length() + 2;
+		}
+		return 8;
+	}
+}
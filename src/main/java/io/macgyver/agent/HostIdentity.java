@@ -0,0 +1,50 @@
+package io.macgyver.agent;
+
+import java.net.InetAddress;
+import java.util.StringTokenizer;
+
+/**
+ * The IP, DNS name and unqualified host name of this host, all taken from a
+ * single lookup of the local host address.
+ */
+public class HostIdentity {
+
+	static final HostIdentity UNKNOWN = new HostIdentity("127.0.0.1", "localhost", "localhost");
+
+	final String hostIp;
+	final String dnsName;
+	final String unqualifiedHostname;
+
+	HostIdentity(String hostIp, String dnsName, String unqualifiedHostname) {
+		this.hostIp = hostIp;
+		this.dnsName = dnsName;
+		this.unqualifiedHostname = unqualifiedHostname;
+	}
+
+	static HostIdentity of(InetAddress address) {
+		String host = address.getHostName();
+		String unqualified = host;
+		StringTokenizer st = new StringTokenizer(host, ".");
+		if (st.hasMoreTokens()) {
+			unqualified = st.nextToken();
+		}
+		return new HostIdentity(address.getHostAddress(), host, unqualified);
+	}
+
+	public String getHostIp() {
+		return hostIp;
+	}
+
+	public String getDnsName() {
+		return dnsName;
+	}
+
+	public String getUnqualifiedHostname() {
+		return unqualifiedHostname;
+	}
+
+	@Override
+	public String toString() {
+		return "HostIdentity [hostIp=" + hostIp + ", dnsName=" + dnsName + "]";
+	}
+}
@@ -0,0 +1,111 @@
+package io.macgyver.agent;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the {@link HostIdentity}. Only the very first lookup is done on the
+ * calling thread. Once the cached value is older than the time-to-live it is
+ * still returned, while a background thread looks it up again; if that
+ * lookup fails, the last known value stays in use and the lookup is retried
+ * later.
+ */
+public class HostIdentityCache {
+
+	static Logger logger = LoggerFactory.getLogger(HostIdentityCache.class);
+
+	static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	static final HostIdentityCache DEFAULT = new HostIdentityCache(InetAddress::getLocalHost);
+
+	static Executor refresher;
+
+	final Callable<InetAddress> resolver;
+	final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+	volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+	volatile HostIdentity identity;
+	volatile long nextRefresh;
+
+	HostIdentityCache(Callable<InetAddress> resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * The cache behind {@link MacGyverAgent#getHostIp()},
+	 * {@link MacGyverAgent#getDnsName()} and
+	 * {@link MacGyverAgent#getUnqualifiedHostname()}.
+	 */
+	public static HostIdentityCache getDefault() {
+		return DEFAULT;
+	}
+
+	public HostIdentityCache withTimeToLive(long time, TimeUnit timeUnit) {
+		this.ttlMillis = timeUnit.toMillis(time);
+		return this;
+	}
+
+	public HostIdentity get() {
+		HostIdentity current = identity;
+		if (current == null) {
+			synchronized (this) {
+				if (identity == null) {
+					refresh();
+				}
+				return identity;
+			}
+		}
+		if (System.currentTimeMillis() >= nextRefresh && refreshing.compareAndSet(false, true)) {
+			try {
+				getRefresher().execute(() -> {
+					try {
+						refresh();
+					} finally {
+						refreshing.set(false);
+					}
+				});
+			} catch (RuntimeException e) {
+				refreshing.set(false);
+				logger.warn("could not schedule host identity refresh: {}", e.toString());
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Looks up the host identity on the calling thread.
+	 */
+	void refresh() {
+		try {
+			identity = HostIdentity.of(resolver.call());
+			nextRefresh = System.currentTimeMillis() + ttlMillis;
+		} catch (Exception e) {
+			if (identity == null) {
+				logger.warn("could not determine local host identity: {}", e.toString());
+				identity = HostIdentity.UNKNOWN;
+			} else {
+				logger.warn("could not refresh local host identity -- keeping {}: {}", identity, e.toString());
+			}
+			nextRefresh = System.currentTimeMillis() + Math.min(ttlMillis, RETRY_MILLIS);
+		}
+	}
+
+	static synchronized Executor getRefresher() {
+		if (refresher == null) {
+			refresher = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "macgyver-agent-host-identity");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return refresher;
+	}
+}
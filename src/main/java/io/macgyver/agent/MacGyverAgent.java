@@ -1,30 +1,38 @@
 package io.macgyver.agent;
 
-import com.amazonaws.util.StringUtils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.macgyver.agent.decorator.HostStatusDecorator;
 import io.macgyver.agent.decorator.StandardDiscoveryDecorator;
+import io.macgyver.agent.decorator.StaticStatusDecorator;
 import io.macgyver.agent.decorator.StatusDecorator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.lang.management.ManagementFactory;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 public class MacGyverAgent {
 
@@ -40,12 +48,69 @@ public class MacGyverAgent {
 
 	long threadDumpIntervalMillis = -1;
 
+	ThreadDump.Format threadDumpFormat = ThreadDump.Format.TEXT;
+	ThreadDumpDeltaTracker threadDumpDeltaTracker;
+	boolean threadDumpGrouping = false;
+	Consumer<ThreadDump> threadDumpOptions = threadDump -> {
+	};
+
+	StackProfiler stackProfiler;
+	long stackProfileIntervalMillis = -1;
+
+	/**
+	 * Consecutive failures across all senders. Kept for subclasses; each
+	 * sender's own figures are in {@link #getSenderHealth(Sender)}.
+	 */
 	protected AtomicLong failureCount = new AtomicLong(0);
 
 	List<Sender> senders = new CopyOnWriteArrayList<>();
 
 	long failureCountThreshold = 10;
 
+	static final int MAX_BACKOFF_LEVEL = 5;
+
+	double scheduleJitter = 0;
+	// consecutive backpressure responses per sender; the schedule follows the most throttled one
+	Map<Sender, Integer> backoffLevels = new ConcurrentHashMap<>();
+	volatile long retryAfterUntil = 0;
+
+	public static final String IDEMPOTENCY_KEY_ATTRIBUTE = "idempotencyKey";
+	int maxSendAttempts = 1;
+	long retryBackoffMillis = TimeUnit.SECONDS.toMillis(1);
+	long maxRetryBackoffMillis = TimeUnit.MINUTES.toMillis(1);
+	ScheduledExecutorService retryExecutor;
+	// retries waiting on the timer, spooled rather than lost on stop()
+	Set<RetryTask> pendingRetries = ConcurrentHashMap.newKeySet();
+
+	int circuitFailureThreshold = 0;
+	long circuitCooldownMillis = TimeUnit.MINUTES.toMillis(1);
+	Map<Sender, SenderHealth> senderHealth = new ConcurrentHashMap<>();
+	// envelopes of messages that buffering senders are holding, by identity of the message
+	Map<Sender, Map<Object, Envelope>> buffered = new ConcurrentHashMap<>();
+
+	File spoolDirectory;
+	long spoolMaxBytes;
+	long spoolRetentionMillis;
+	int spoolReplayPerSecond;
+	Set<MessageType> spooledTypes = EnumSet.noneOf(MessageType.class);
+	Map<Sender, MessageSpool> spools = new ConcurrentHashMap<>();
+	ScheduledExecutorService spoolReplayer;
+	// no spool is (re)opened once stop() has closed them
+	volatile boolean spoolsClosed = false;
+
+	static final long DEFAULT_SEND_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	volatile AsyncDispatcher asyncDispatcher;
+	volatile int asyncQueueCapacity = 0;
+	long asyncMaxQueuedBytes = Long.MAX_VALUE;
+	OverflowPolicy asyncOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+	long asyncBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+	volatile int senderQueueCapacity = 0;
+	Map<Sender, SenderWorker> senderWorkers = new ConcurrentHashMap<>();
+	ScheduledExecutorService senderWatchdog;
+	Map<MessageType, Long> sendDeadlineMillis = new ConcurrentHashMap<>();
+
 	public static enum AppEventType {
 		GENERIC_MESSAGE, GENERIC_ERROR, STARTUP_INITIATED, STARTUP_COMPLETE, STARTUP_FAILED, SHUTDOWN_INITIATED, SHUTDOWN_COMPLETE, SHUTDOWN_FAILED, DEPLOY_INITIATED, DEPLOY_COMPLETE, DEPLOY_FAILED
 	}
@@ -54,73 +119,570 @@ public class MacGyverAgent {
 
 		public void sendAppEvent(ObjectNode n);
 
+		/**
+		 * Receives app events reported with
+		 * {@link MacGyverAgent#reportAppEvent(AppEvent)}. Senders that can write
+		 * the event straight to the wire should override this; by default it
+		 * is turned into a tree.
+		 */
+		public default void sendAppEvent(AppEvent event) {
+			sendAppEvent(event.toObjectNode());
+		}
+
 		public void sendCheckIn(ObjectNode n);
 
 		public void sendThreadDump(ObjectNode n);
 
 		public void sendAppConfigDump(ObjectNode n);
+
+		/**
+		 * Receives collapsed stack profiles. Senders that don't know about
+		 * profiles ignore them.
+		 */
+		public default void sendStackProfile(ObjectNode n) {
+		}
+
+		/**
+		 * Identifies the sender across restarts, e.g. by where it sends to.
+		 * The agent keeps the sender's spool in a directory named after it.
+		 */
+		public default String getSenderId() {
+			return getClass().getName();
+		}
+	}
+
+	/**
+	 * A sender that can write a thread dump straight to the wire instead of
+	 * receiving it as a (possibly very large) String attribute.
+	 */
+	public static interface StreamingSender extends Sender {
+
+		public void sendThreadDump(ObjectNode status, EncodedThreadDump threadDump);
+	}
+
+	/**
+	 * A sender that buffers messages and sends them later, e.g. in batches,
+	 * so it can't report a failure by throwing from the send method. The
+	 * agent gives it a listener instead. Messages of a failed batch count
+	 * against the sender's health and are retried or spooled like any other
+	 * failed message.
+	 */
+	public static interface BufferingSender extends Sender {
+
+		/**
+		 * Whether messages of the given type are currently buffered rather
+		 * than sent right away.
+		 */
+		public boolean isBuffering(MessageType type);
+
+		public void setBatchListener(BatchListener listener);
+	}
+
+	/**
+	 * Told about the batches a {@link BufferingSender} has sent or failed to
+	 * send. The messages are the {@link ObjectNode}s and {@link AppEvent}s the
+	 * sender was given.
+	 */
+	public static interface BatchListener {
+
+		public void batchSent(List<Object> messages);
+
+		public void batchFailed(List<Object> messages, RuntimeException e);
 	}
 
 	final void sendCheckIn(ObjectNode status) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("sendCheckIn {}",status);
 		}
-		for (Sender sender : senders) {
-			try {
-				sender.sendCheckIn(status);
-				failureCount.set(0);
-			} catch (RuntimeException e) {
-				logSenderException(sender, MessageType.APP_CHECK_IN, e);
-			}
-		}
+		dispatch(new Envelope(MessageType.APP_CHECK_IN, status));
 	}
 
-	final void sendThreadDump(ObjectNode status) {
+	final void sendThreadDump(ObjectNode status, EncodedThreadDump threadDump) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("sendThreadDump host={} appId={}",status.path("host").asText(),status.path("appId").asText());
 		}
-		for (Sender sender : senders) {
-
-			try {
-				sender.sendThreadDump(status);
-				failureCount.set(0);
-			} catch (Exception e) {
-				logSenderException(sender, MessageType.THREAD_DUMP, e);
-			}
-		}
+		dispatch(new Envelope(MessageType.THREAD_DUMP, status, threadDump));
 	}
 
 	final void sendAppEvent(ObjectNode n) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("sendAppEvent {}",n);
 		}
-		for (Sender sender : senders) {
-			try {
-				sender.sendAppEvent(n);
-				failureCount.set(0);
-			} catch (Exception e) {
-				logSenderException(sender, MessageType.APP_EVENT, e);
-			}
-		}
+		dispatch(new Envelope(MessageType.APP_EVENT, n));
 	}
 
 	final void sendAppConfigDump(ObjectNode n) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("sendAppConfigDump host={} appId={}", n.path("host").asText(), n.path("appId").asText());
 		}
+		dispatch(new Envelope(MessageType.APP_CONFIG_DUMP, n));
+	}
 
+	final void sendStackProfile(ObjectNode n) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("sendStackProfile host={} appId={} sampleCount={}", n.path("host").asText(),
+					n.path("appId").asText(), n.path("sampleCount").asLong());
+		}
+		dispatch(new Envelope(MessageType.STACK_PROFILE, n));
+	}
+
+	void dispatch(Envelope envelope) {
+		if (maxSendAttempts > 1) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (envelope.event != null) {
+				// the event is already the agent's own copy
+				if (envelope.event.get(IDEMPOTENCY_KEY_ATTRIBUTE) == null) {
+					envelope.event.set(IDEMPOTENCY_KEY_ATTRIBUTE,
+							new UUID(random.nextLong(), random.nextLong()).toString());
+				}
+			} else if (!envelope.data.has(IDEMPOTENCY_KEY_ATTRIBUTE)) {
+				// the data may be the caller's, so the key goes on a shallow copy
+				ObjectNode data = envelope.data.objectNode();
+				data.setAll(envelope.data);
+				data.put(IDEMPOTENCY_KEY_ATTRIBUTE, new UUID(random.nextLong(), random.nextLong()).toString());
+				envelope = envelope.withData(data);
+			}
+		}
+		AsyncDispatcher dispatcher = getAsyncDispatcher();
+		if (dispatcher == null) {
+			deliver(envelope);
+		} else {
+			dispatcher.offer(envelope);
+		}
+	}
+
+	void deliver(Envelope envelope) {
 		for (Sender sender : senders) {
+			if (senderQueueCapacity > 0) {
+				if (!getSenderWorker(sender).submit(envelope, getSendDeadlineMillis(envelope.type))) {
+					checkInFailed(envelope);
+					threadDumpFailed(envelope);
+				}
+			} else {
+				deliver(sender, envelope);
+			}
+		}
+	}
+
+	void deliver(Sender sender, Envelope envelope) {
+		SenderHealth health = getSenderHealth(sender);
+		if (!health.allowRequest()) {
+			health.recordRejected();
+			if (logger.isDebugEnabled()) {
+				logger.debug("circuit for {} is open -- not sending {}", sender, envelope.type);
+			}
+			checkInFailed(envelope);
+			threadDumpFailed(envelope);
+			spool(sender, envelope);
+			return;
+		}
+		boolean buffering = track(sender, envelope);
+		try {
+			send(sender, envelope);
+			if (!buffering) {
+				recordSuccess(sender, health, envelope.type);
+				checkInDelivered(envelope);
+			}
+		} catch (UnknownContentHashException e) {
+			// the collector is up, it just doesn't know the hash
+			health.recordSuccess();
+			logger.info("{} -- sending a full check-in", e.getMessage());
+			requestFullCheckIn();
+		} catch (BackpressureException e) {
+			untrack(sender, getPayload(sender, envelope));
+			applyBackpressure(sender, e.getRetryAfterMillis());
+			recordFailure(sender, health, envelope, e);
+			retry(sender, envelope, e.getRetryAfterMillis());
+		} catch (IOException | RuntimeException e) {
+			untrack(sender, getPayload(sender, envelope));
+			recordFailure(sender, health, envelope, e);
+			retry(sender, envelope, 0);
+		}
+	}
+
+	private void recordSuccess(Sender sender, SenderHealth health, MessageType type) {
+		health.recordSuccess();
+		failureCount.set(0);
+		// only the sender that asked for the backoff can lift it
+		if (backoffLevels.remove(sender) != null) {
+			logger.info("{} accepted {} -- back to the normal schedule unless other senders are backing off",
+					sender, type);
+		}
+	}
+
+	/**
+	 * Remembers the envelope of a message that the sender is about to buffer,
+	 * so that the outcome of its batch can be traced back to it.
+	 *
+	 * @return true if the sender buffers the message
+	 */
+	boolean track(Sender sender, Envelope envelope) {
+		if (!(sender instanceof BufferingSender) || !((BufferingSender) sender).isBuffering(envelope.type)) {
+			return false;
+		}
+		buffered.computeIfAbsent(sender, s -> Collections.synchronizedMap(new IdentityHashMap<>()))
+				.put(getPayload(sender, envelope), envelope);
+		return true;
+	}
+
+	Envelope untrack(Sender sender, Object message) {
+		Map<Object, Envelope> envelopes = buffered.get(sender);
+		return envelopes == null || message == null ? null : envelopes.remove(message);
+	}
+
+	/**
+	 * Outcome of the batches of a buffering sender, fed back into the same
+	 * accounting, retries and spooling as messages sent right away.
+	 */
+	class SenderBatchListener implements BatchListener {
+
+		final Sender sender;
+
+		SenderBatchListener(Sender sender) {
+			this.sender = sender;
+		}
+
+		@Override
+		public void batchSent(List<Object> messages) {
+			MessageType type = null;
+			for (Object message : messages) {
+				Envelope envelope = untrack(sender, message);
+				if (envelope != null) {
+					type = envelope.type;
+					checkInDelivered(envelope);
+				}
+			}
+			if (type != null) {
+				recordSuccess(sender, getSenderHealth(sender), type);
+			}
+		}
+
+		@Override
+		public void batchFailed(List<Object> messages, RuntimeException e) {
+			long retryAfterMillis = 0;
+			if (e instanceof BackpressureException) {
+				retryAfterMillis = ((BackpressureException) e).getRetryAfterMillis();
+				applyBackpressure(sender, retryAfterMillis);
+			}
+			SenderHealth health = getSenderHealth(sender);
+			boolean recorded = false;
+			for (Object message : messages) {
+				Envelope envelope = untrack(sender, message);
+				if (envelope == null) {
+					continue;
+				}
+				// one request failed, however many messages it carried
+				if (!recorded) {
+					recordFailure(sender, health, envelope, e);
+					recorded = true;
+				}
+				retry(sender, envelope, retryAfterMillis);
+			}
+		}
+	}
+
+	private void recordFailure(Sender sender, SenderHealth health, Envelope envelope, Exception e) {
+		if (health.recordFailure(e)) {
+			logger.warn("{} failed {} times in a row -- not sending to it for {} secs", sender,
+					health.getConsecutiveFailures(), TimeUnit.MILLISECONDS.toSeconds(circuitCooldownMillis));
+		}
+		failureCount.incrementAndGet();
+		logSenderException(sender, envelope.type, health.getConsecutiveFailures(), e);
+	}
+
+	/**
+	 * Schedules the next attempt of a failed delivery on the retry timer, so
+	 * that neither the scheduler nor the sender worker sleeps through the
+	 * backoff.
+	 */
+	void retry(Sender sender, Envelope envelope, long minDelayMillis) {
+		checkInFailed(envelope);
+		threadDumpFailed(envelope);
+		if (envelope.attempt >= maxSendAttempts) {
+			if (maxSendAttempts > 1) {
+				logger.debug("giving up on {} via {} after {} attempts", envelope.type, sender, envelope.attempt);
+			}
+			spool(sender, envelope);
+			return;
+		}
+		RetryTask task = new RetryTask(sender, envelope.nextAttempt());
+		pendingRetries.add(task);
+		try {
+			getRetryExecutor().schedule(task, Math.max(minDelayMillis, getRetryDelayMillis(envelope.attempt)),
+					TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopping
+			pendingRetries.remove(task);
+			spool(sender, task.envelope);
+		}
+	}
+
+	class RetryTask implements Runnable {
+
+		final Sender sender;
+		final Envelope envelope;
+
+		RetryTask(Sender sender, Envelope envelope) {
+			this.sender = sender;
+			this.envelope = envelope;
+		}
+
+		@Override
+		public void run() {
+			if (!pendingRetries.remove(this)) {
+				// already spooled by stop()
+				return;
+			}
+			if (senderQueueCapacity <= 0) {
+				deliver(sender, envelope);
+			} else if (!getSenderWorker(sender).submit(envelope, getSendDeadlineMillis(envelope.type))) {
+				// no room in the sender's queue is as final as running out of attempts
+				recordFailure(sender, getSenderHealth(sender), envelope,
+						new AgentException("queue for " + sender + " is full -- not retrying " + envelope.type));
+				spool(sender, envelope);
+			}
+		}
+	}
+
+	/**
+	 * Exponential backoff with "equal jitter": half the doubled delay plus a
+	 * random share of the other half, capped at the maximum backoff.
+	 */
+	long getRetryDelayMillis(int attempt) {
+		long delay = Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(attempt - 1, 30));
+		return delay / 2 + (long) (delay / 2 * ThreadLocalRandom.current().nextDouble());
+	}
+
+	synchronized ScheduledExecutorService getRetryExecutor() {
+		if (retryExecutor == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread t = new Thread(r, "macgyver-agent-retry");
+				t.setDaemon(true);
+				return t;
+			});
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			retryExecutor = executor;
+		}
+		return retryExecutor;
+	}
+
+	void spool(Sender sender, Envelope envelope) {
+		if (!spooledTypes.contains(envelope.type)) {
+			return;
+		}
+		MessageSpool spool = getSpool(sender);
+		if (spool == null) {
+			return;
+		}
+		try {
+			byte[] payload = envelope.event != null ? envelope.event.toJsonBytes()
+					: mapper.writeValueAsBytes(envelope.getDataWithThreadDump());
+			if (!spool.append(envelope.type, System.currentTimeMillis(), payload)) {
+				logger.warn("{} is too large to spool", envelope.type);
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("problem spooling " + envelope.type + " for " + sender + ": " + e.toString());
+		}
+	}
+
+	MessageSpool getSpool(Sender sender) {
+		File directory = spoolDirectory;
+		if (directory == null || spoolsClosed) {
+			return null;
+		}
+		return spools.computeIfAbsent(sender, s -> {
 			try {
-				sender.sendAppConfigDump(n);
-				failureCount.set(0);
-			} catch (Exception e) {
-				logSenderException(sender, MessageType.APP_CONFIG_DUMP, e);
+				return new MessageSpool(new File(directory, getSpoolDirectoryName(s)), spoolMaxBytes,
+						spoolRetentionMillis);
+			} catch (IOException e) {
+				logger.warn("could not open spool for " + s + ": " + e.toString());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A directory name derived from the sender's id rather than its position,
+	 * so that a spool is replayed to the same sender after a restart even if
+	 * senders are added in a different order. Senders with the same id are
+	 * told apart by their order among themselves.
+	 */
+	String getSpoolDirectoryName(Sender sender) {
+		String id = sender.getSenderId();
+		int duplicates = 0;
+		for (Sender s : senders) {
+			if (s == sender) {
+				break;
+			}
+			if (id.equals(s.getSenderId())) {
+				duplicates++;
+			}
+		}
+		String name = id.replaceAll("[^A-Za-z0-9._-]+", "_");
+		if (name.length() > 64) {
+			name = name.substring(0, 64);
+		}
+		name = "sender-" + name + "-" + String.format("%08x", id.hashCode());
+		return duplicates == 0 ? name : name + "-" + duplicates;
+	}
+
+	/**
+	 * Replays up to the configured number of spooled messages to every sender
+	 * that is healthy, oldest first, and stops at the first failure.
+	 */
+	void replaySpools() {
+		for (Sender sender : senders) {
+			MessageSpool spool = spools.get(sender);
+			SenderHealth health = getSenderHealth(sender);
+			if (spool == null || health.getConsecutiveFailures() > 0
+					|| health.getCircuitState() != SenderHealth.CircuitState.CLOSED) {
+				continue;
+			}
+			for (int i = 0; i < spoolReplayPerSecond; i++) {
+				MessageSpool.Record record = spool.peek();
+				if (record == null) {
+					break;
+				}
+				Envelope envelope = null;
+				try {
+					ObjectNode data = (ObjectNode) mapper.readTree(record.payload);
+					envelope = new Envelope(record.type, data);
+					// if the sender buffers it, a failed batch retries or spools it again
+					boolean buffering = track(sender, envelope);
+					send(sender, envelope);
+					if (!buffering) {
+						health.recordSuccess();
+						checkInDelivered(envelope);
+					}
+					spool.commit(record);
+				} catch (IOException | RuntimeException e) {
+					if (envelope != null) {
+						untrack(sender, envelope.data);
+					}
+					health.recordFailure(e);
+					logSenderException(sender, record.type, health.getConsecutiveFailures(), e);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivery statistics and circuit state of the given sender.
+	 */
+	public SenderHealth getSenderHealth(Sender sender) {
+		return senderHealth.computeIfAbsent(sender,
+				s -> new SenderHealth(circuitFailureThreshold, circuitCooldownMillis));
+	}
+
+	/**
+	 * The object that {@link #send(Sender, Envelope)} hands to the sender.
+	 */
+	static Object getPayload(Sender sender, Envelope envelope) {
+		if (envelope.event != null) {
+			return envelope.event;
+		}
+		if (envelope.threadDump != null && sender instanceof StreamingSender) {
+			return envelope.data;
+		}
+		try {
+			return envelope.getDataWithThreadDump();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	static void send(Sender sender, Envelope envelope) throws IOException {
+		if (envelope.event != null) {
+			sender.sendAppEvent(envelope.event);
+		} else if (envelope.threadDump != null && sender instanceof StreamingSender) {
+			((StreamingSender) sender).sendThreadDump(envelope.data, envelope.threadDump);
+		} else {
+			send(sender, envelope.type, envelope.getDataWithThreadDump());
+		}
+	}
+
+	static void send(Sender sender, MessageType type, ObjectNode n) {
+		switch (type) {
+		case APP_CHECK_IN:
+			sender.sendCheckIn(n);
+			break;
+		case THREAD_DUMP:
+			sender.sendThreadDump(n);
+			break;
+		case APP_EVENT:
+			sender.sendAppEvent(n);
+			break;
+		case APP_CONFIG_DUMP:
+			sender.sendAppConfigDump(n);
+			break;
+		case STACK_PROFILE:
+			sender.sendStackProfile(n);
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported message type: " + type);
+		}
+	}
+
+	AsyncDispatcher getAsyncDispatcher() {
+		AsyncDispatcher dispatcher = asyncDispatcher;
+		if (dispatcher != null || asyncQueueCapacity <= 0) {
+			return dispatcher;
+		}
+		synchronized (this) {
+			if (asyncDispatcher == null) {
+				asyncDispatcher = new AsyncDispatcher(asyncQueueCapacity, asyncMaxQueuedBytes, asyncOverflowPolicy,
+						asyncBlockTimeoutNanos, this::deliver);
 			}
+			return asyncDispatcher;
+		}
+	}
+
+	SenderWorker getSenderWorker(Sender sender) {
+		SenderWorker worker = senderWorkers.get(sender);
+		if (worker != null) {
+			return worker;
+		}
+		// not created inside computeIfAbsent, which would take the agent's lock under the map's
+		SenderWorker created = new SenderWorker(sender, "macgyver-agent-sender-" + senderWorkers.size(),
+				senderQueueCapacity, getSenderWatchdog(), this::deliver, this::expire);
+		worker = senderWorkers.putIfAbsent(sender, created);
+		if (worker != null) {
+			created.stop(0, TimeUnit.MILLISECONDS);
+			return worker;
+		}
+		return created;
+	}
+
+	synchronized ScheduledExecutorService getSenderWatchdog() {
+		if (senderWatchdog == null) {
+			ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread t = new Thread(r, "macgyver-agent-send-watchdog");
+				t.setDaemon(true);
+				return t;
+			});
+			watchdog.setRemoveOnCancelPolicy(true);
+			senderWatchdog = watchdog;
 		}
+		return senderWatchdog;
+	}
+
+	/**
+	 * A message whose send deadline passed while it was queued for the
+	 * sender counts as a failed send.
+	 */
+	void expire(Sender sender, Envelope envelope) {
+		recordFailure(sender, getSenderHealth(sender), envelope,
+				new AgentException(envelope.type + " was not sent within its deadline"));
+		retry(sender, envelope, 0);
+	}
+
+	long getSendDeadlineMillis(MessageType type) {
+		Long deadline = sendDeadlineMillis.get(type);
+		return deadline == null ? 0 : deadline;
 	}
 
-	private void logSenderException(Sender sender, MessageType type, Exception e) {
-		long count = failureCount.incrementAndGet();
+	private void logSenderException(Sender sender, MessageType type, long count, Exception e) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("problem sending " + type.name() + " via " + sender, e);
 		} else {
@@ -134,8 +696,27 @@ public class MacGyverAgent {
 
 	protected AppMetadataProvider discovery;
 
+	static final int MAX_CACHED_ATTRIBUTE_NAMES = 1024;
+	Map<String, Boolean> conformingNames = new ConcurrentHashMap<>();
+	volatile StaticStatus staticStatus;
+
+	public static final String CONTENT_HASH_ATTRIBUTE = "contentHash";
+	public static final String HEARTBEAT_ATTRIBUTE = "heartbeat";
+	volatile int fullCheckInInterval = 0;
+	final Object checkInLock = new Object();
+	String lastCheckInHash;
+	int checkInsSinceFull = 0;
+	boolean fullCheckInRequested = false;
+
 	public static enum MessageType {
-		APP_EVENT, APP_CHECK_IN, THREAD_DUMP, APP_CONFIG_DUMP
+		APP_EVENT, APP_CHECK_IN, THREAD_DUMP, APP_CONFIG_DUMP, STACK_PROFILE
+	}
+
+	/**
+	 * What to do when the async dispatch queue is full.
+	 */
+	public static enum OverflowPolicy {
+		DROP_OLDEST, DROP_NEWEST, BLOCK
 	}
 
 	public MacGyverAgent() {
@@ -144,10 +725,29 @@ public class MacGyverAgent {
 		decoratorList.add(new StandardDiscoveryDecorator(this));
 	}
 
+	/**
+	 * Runs all decorators against <code>status</code>, in order, and scrubs
+	 * the result. The static part of a {@link StaticStatusDecorator} is
+	 * computed and scrubbed once; at the decorator's turn its cached
+	 * attributes are merged into <code>status</code> and only its dynamic part
+	 * runs. Decorators see, and may override or remove, everything set before
+	 * them, static attributes included.
+	 */
 	public void decorate(ObjectNode status) {
-		for (StatusDecorator d : decoratorList) {
+		decorate(status, getStaticStatus());
+	}
+
+	void decorate(ObjectNode status, StaticStatus stable) {
+		List<StatusDecorator> decorators = stable.decorators;
+		for (int i = 0; i < decorators.size(); i++) {
+			StatusDecorator d = decorators.get(i);
 			try {
-				d.decorate(status);
+				if (stable.decoratorAttributes[i] != null) {
+					status.setAll(stable.decoratorAttributes[i]);
+					((StaticStatusDecorator) d).decorateDynamic(status);
+				} else {
+					d.decorate(status);
+				}
 			} catch (Exception e) {
 				logger.warn("problem decorating", e);
 			}
@@ -155,6 +755,121 @@ public class MacGyverAgent {
 		scrubNonConformingAttributes(status);
 	}
 
+	/**
+	 * Discards the cached static attributes, e.g. after the values returned by
+	 * the {@link AppMetadataProvider} have changed. Changes to the decorator
+	 * list and the metadata provider are picked up automatically.
+	 */
+	public void invalidateStaticStatus() {
+		staticStatus = null;
+	}
+
+	StaticStatus getStaticStatus() {
+		StaticStatus cached = staticStatus;
+		if (cached != null && cached.isValidFor(decoratorList, discovery)) {
+			return cached;
+		}
+		synchronized (this) {
+			cached = staticStatus;
+			if (cached != null && cached.isValidFor(decoratorList, discovery)) {
+				return cached;
+			}
+			List<StatusDecorator> decorators = new ArrayList<>(decoratorList);
+			AppMetadataProvider provider = discovery;
+			ObjectNode attributes = mapper.createObjectNode();
+			ObjectNode[] decoratorAttributes = new ObjectNode[decorators.size()];
+			boolean complete = true;
+			for (int i = 0; i < decorators.size(); i++) {
+				StatusDecorator d = decorators.get(i);
+				if (isSplit(d)) {
+					decoratorAttributes[i] = mapper.createObjectNode();
+					try {
+						((StaticStatusDecorator) d).decorateStatic(decoratorAttributes[i]);
+					} catch (Exception e) {
+						logger.warn("problem decorating", e);
+						complete = false;
+					}
+					scrubNonConformingAttributes(decoratorAttributes[i]);
+					attributes.setAll(decoratorAttributes[i]);
+				}
+			}
+			StaticStatus status = new StaticStatus(decorators, provider, attributes, decoratorAttributes);
+			// if a decorator failed, try again with the next message
+			staticStatus = complete ? status : null;
+			return status;
+		}
+	}
+
+	/**
+	 * Whether the static part of a decorator can be cached. A subclass that
+	 * overrides <code>decorate()</code>, e.g. one written against
+	 * {@link StandardDiscoveryDecorator} before it had a static part, still
+	 * gets <code>decorate()</code> called for every message.
+	 */
+	static boolean isSplit(StatusDecorator d) {
+		if (!(d instanceof StaticStatusDecorator)) {
+			return false;
+		}
+		try {
+			return d.getClass().getMethod("decorate", ObjectNode.class)
+					.getDeclaringClass() == StaticStatusDecorator.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	static class StaticStatus {
+
+		final List<StatusDecorator> decorators;
+		final AppMetadataProvider provider;
+		final ObjectNode attributes;
+		// static attributes per decorator, by position; null for plain decorators
+		final ObjectNode[] decoratorAttributes;
+		String contentHash;
+
+		StaticStatus(List<StatusDecorator> decorators, AppMetadataProvider provider, ObjectNode attributes,
+				ObjectNode[] decoratorAttributes) {
+			this.decorators = decorators;
+			this.provider = provider;
+			this.attributes = attributes;
+			this.decoratorAttributes = decoratorAttributes;
+		}
+
+		/**
+		 * First 64 bits of the SHA-256 of the serialized attributes, in hex.
+		 */
+		synchronized String getContentHash() {
+			if (contentHash == null) {
+				try {
+					byte[] digest = MessageDigest.getInstance("SHA-256")
+							.digest(attributes.toString().getBytes(StandardCharsets.UTF_8));
+					StringBuilder sb = new StringBuilder(16);
+					for (int i = 0; i < 8; i++) {
+						sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+						sb.append(Character.forDigit(digest[i] & 0xf, 16));
+					}
+					contentHash = sb.toString();
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return contentHash;
+		}
+
+		boolean isValidFor(List<StatusDecorator> currentDecorators, AppMetadataProvider currentProvider) {
+			if (provider != currentProvider || decorators.size() != currentDecorators.size()) {
+				return false;
+			}
+			int i = 0;
+			for (StatusDecorator d : currentDecorators) {
+				if (i >= decorators.size() || decorators.get(i++) != d) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	protected boolean isConformingAttributeName(String name) {
 		if (name == null) {
 			return false;
@@ -173,22 +888,31 @@ public class MacGyverAgent {
 		return true;
 	}
 
+	boolean isConformingAttributeNameCached(String name) {
+		if (name == null) {
+			return false;
+		}
+		Boolean conforming = conformingNames.get(name);
+		if (conforming == null) {
+			conforming = isConformingAttributeName(name);
+			// attribute names are mostly a fixed set; don't let odd ones grow the cache forever
+			if (conformingNames.size() < MAX_CACHED_ATTRIBUTE_NAMES) {
+				conformingNames.put(name, conforming);
+			}
+		}
+		return conforming;
+	}
+
 	protected void scrubNonConformingAttributes(ObjectNode n) {
-		List<String> scrubList = new ArrayList<>();
-		Iterator<String> t = n.fieldNames();
+		Iterator<Entry<String, JsonNode>> t = n.fields();
 		while (t.hasNext()) {
-			String fieldName = t.next();
-			JsonNode val = n.get(fieldName);
-
-			if ((!isConformingAttributeName(fieldName)) ||
-					val.isContainerNode()) {
-				scrubList.add(fieldName);
+			Entry<String, JsonNode> field = t.next();
+			if ((!isConformingAttributeNameCached(field.getKey())) ||
+					field.getValue().isContainerNode()) {
+				t.remove();
 			}
 
 		}
-		scrubList.forEach(it -> {
-			n.remove(it);
-		});
 
 	}
 
@@ -197,20 +921,39 @@ public class MacGyverAgent {
 		ObjectNode status = mapper.createObjectNode();
 		decorate(status);
 
-		ThreadDump threadDump = captureThreadDump();
+		ThreadDump threadDump = captureThreadDump().withGrouping(threadDumpGrouping);
+		threadDumpOptions.accept(threadDump);
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-		GZIPOutputStream gz = new GZIPOutputStream(Base64.getEncoder().wrap(baos));
-
-		OutputStreamWriter osw = new OutputStreamWriter(gz);
-
-		threadDump.dump(osw);
-		osw.close();
+		ThreadInfo[] threads = threadDump.capture();
+		status.put("threadDumpCaptureMicros", threadDump.getLastCaptureTime(TimeUnit.MICROSECONDS));
+		status.put("threadDumpLongestPauseMicros", threadDump.getLastLongestPause(TimeUnit.MICROSECONDS));
+		if (logger.isDebugEnabled()) {
+			logger.debug("captured {} threads in {}us (longest pause {}us)", threads.length,
+					threadDump.getLastCaptureTime(TimeUnit.MICROSECONDS),
+					threadDump.getLastLongestPause(TimeUnit.MICROSECONDS));
+		}
+		ThreadDumpDeltaTracker tracker = threadDumpDeltaTracker;
+		if (tracker != null) {
+			sendThreadDump(status, new EncodedThreadDump(threadDump, tracker.next(threads)));
+		} else {
+			sendThreadDump(status, new EncodedThreadDump(threadDump, threads, threadDumpFormat));
+		}
 
-		status.put("threadDumpGzip", new String(baos.toByteArray()));
-		sendThreadDump(status);
+	}
 
+	/**
+	 * Sends the stacks sampled since the previous report. Does nothing if
+	 * stack profiling is not enabled.
+	 */
+	public final void reportStackProfile() {
+		StackProfiler profiler = stackProfiler;
+		if (profiler == null) {
+			return;
+		}
+		ObjectNode profile = mapper.createObjectNode();
+		decorate(profile);
+		profiler.report(profile);
+		sendStackProfile(profile);
 	}
 
 	public void reportAppConfigDump(ArrayNode appConfigs) throws IOException {
@@ -231,11 +974,110 @@ public class MacGyverAgent {
 	public final void reportCheckIn() {
 		ObjectNode status = mapper.createObjectNode();
 
-		decorate(status);
+		if (fullCheckInInterval <= 0) {
+			decorate(status);
+			sendCheckIn(status);
+			return;
+		}
+
+		StaticStatus stable = getStaticStatus();
+		decorate(status, stable);
+		String hash = stable.getContentHash();
+		boolean full;
+		synchronized (checkInLock) {
+			// the hash only becomes the last one once a sender has accepted the full check-in
+			full = fullCheckInRequested || !hash.equals(lastCheckInHash)
+					|| checkInsSinceFull + 1 >= fullCheckInInterval;
+			if (full) {
+				checkInsSinceFull = 0;
+				fullCheckInRequested = false;
+			} else {
+				checkInsSinceFull++;
+			}
+		}
+		if (!full) {
+			// a heartbeat leaves out the static attributes that the hash stands for
+			Iterator<Entry<String, JsonNode>> t = stable.attributes.fields();
+			while (t.hasNext()) {
+				Entry<String, JsonNode> field = t.next();
+				if (!field.getKey().equals("appId") && field.getValue().equals(status.get(field.getKey()))) {
+					status.remove(field.getKey());
+				}
+			}
+			status.put(HEARTBEAT_ATTRIBUTE, true);
+		}
+		status.put(CONTENT_HASH_ATTRIBUTE, hash);
 
 		sendCheckIn(status);
 	}
 
+	/**
+	 * Remembers the content hash of a full check-in that a sender accepted, so
+	 * that the following check-ins can be heartbeats.
+	 */
+	void checkInDelivered(Envelope envelope) {
+		if (envelope.type != MessageType.APP_CHECK_IN || envelope.data.path(HEARTBEAT_ATTRIBUTE).asBoolean()) {
+			return;
+		}
+		JsonNode hash = envelope.data.get(CONTENT_HASH_ATTRIBUTE);
+		if (hash != null) {
+			synchronized (checkInLock) {
+				lastCheckInHash = hash.asText();
+			}
+		}
+	}
+
+	/**
+	 * Makes the next check-in a full one if a sender did not get a full
+	 * check-in, even if another sender did, so that the server behind it
+	 * doesn't only get heartbeats for content it has never seen. Unlike
+	 * {@link #requestFullCheckIn()}, this waits for the next scheduled check-in.
+	 */
+	void checkInFailed(Envelope envelope) {
+		if (envelope.type != MessageType.APP_CHECK_IN || !envelope.data.has(CONTENT_HASH_ATTRIBUTE)
+				|| envelope.data.path(HEARTBEAT_ATTRIBUTE).asBoolean()) {
+			return;
+		}
+		synchronized (checkInLock) {
+			fullCheckInRequested = true;
+		}
+	}
+
+	/**
+	 * Makes the next thread dump a keyframe if a sender did not get a tracked
+	 * dump, even if it gets it on a later attempt, so that its receiver never
+	 * waits for a keyframe interval with deltas it can't apply.
+	 */
+	void threadDumpFailed(Envelope envelope) {
+		ThreadDumpDeltaTracker tracker = threadDumpDeltaTracker;
+		if (tracker == null || envelope.type != MessageType.THREAD_DUMP || envelope.threadDump == null
+				|| envelope.threadDump.delta == null) {
+			return;
+		}
+		tracker.requestKeyframe();
+	}
+
+	/**
+	 * Makes the next check-in a full one, and sends it right away if the agent
+	 * is running.
+	 */
+	void requestFullCheckIn() {
+		synchronized (checkInLock) {
+			if (fullCheckInRequested) {
+				return;
+			}
+			fullCheckInRequested = true;
+		}
+		ScheduledExecutorService executor = scheduledExecutor;
+		if (executor != null) {
+			try {
+				executor.execute(new ScheduledCheckInTask());
+			} catch (RejectedExecutionException e) {
+				// stopping; the flag is enough
+			}
+		}
+	}
+
 	public boolean isThreadDumpEnabled() {
 		return threadDumpIntervalMillis > 0;
 	}
@@ -249,11 +1091,100 @@ public class MacGyverAgent {
 		return (T) this;
 	}
 
+	/**
+	 * Render thread dumps in the given format. Structured dumps are sent in the
+	 * <code>threadDumpStructuredGzip</code> attribute rather than
+	 * <code>threadDumpGzip</code>.
+	 */
+	public <T extends MacGyverAgent> T withThreadDumpFormat(ThreadDump.Format format) {
+		this.threadDumpFormat = format;
+		return (T) this;
+	}
+
+	/**
+	 * Send structured thread dumps that only carry the threads that are new or
+	 * changed since the previous dump, together with the ids of threads that
+	 * have gone away and the <code>dumpId</code> of the previous dump as
+	 * <code>baseDumpId</code>. Every <code>keyframeInterval</code> dumps a full
+	 * dump is sent, and after any dump that a sender failed to get.
+	 */
+	public <T extends MacGyverAgent> T withThreadDumpDeltas(int keyframeInterval) {
+		this.threadDumpFormat = ThreadDump.Format.STRUCTURED;
+		this.threadDumpDeltaTracker = new ThreadDumpDeltaTracker(keyframeInterval);
+		return (T) this;
+	}
+
+	/**
+	 * Group threads with the same state and stack into a single entry in thread
+	 * dumps. See {@link ThreadDump#withGrouping(boolean)}.
+	 */
+	public <T extends MacGyverAgent> T withThreadDumpGrouping(boolean grouping) {
+		this.threadDumpGrouping = grouping;
+		return (T) this;
+	}
+
+	/**
+	 * Configure how threads are captured for thread dumps, e.g.
+	 * <code>withThreadDumpOptions(d -&gt; d.withMaxStackDepth(64).withCaptureBatchSize(100))</code>.
+	 * Options accumulate over calls.
+	 */
+	public <T extends MacGyverAgent> T withThreadDumpOptions(Consumer<ThreadDump> options) {
+		this.threadDumpOptions = this.threadDumpOptions.andThen(options);
+		return (T) this;
+	}
+
+	/**
+	 * Sample the stacks of RUNNABLE threads <code>samplesPerSecond</code> times
+	 * a second and send them as a collapsed stack profile every
+	 * <code>reportInterval</code>. Stacks are captured at most 128 frames deep
+	 * and at most 2000 distinct stacks are counted per interval.
+	 */
+	public <T extends MacGyverAgent> T withStackProfiling(int samplesPerSecond, long reportInterval,
+			TimeUnit timeUnit) {
+		return withStackProfiling(samplesPerSecond, 128, 2000, reportInterval, timeUnit);
+	}
+
+	public <T extends MacGyverAgent> T withStackProfiling(int samplesPerSecond, int maxStackDepth, int maxStacks,
+			long reportInterval, TimeUnit timeUnit) {
+		this.stackProfiler = new StackProfiler(ManagementFactory.getThreadMXBean(), samplesPerSecond, maxStackDepth,
+				maxStacks);
+		this.stackProfileIntervalMillis = timeUnit.toMillis(reportInterval);
+		return (T) this;
+	}
+
 	public <T extends MacGyverAgent> T withAppMetadataProvider(AppMetadataProvider md) {
 		this.discovery = md;
 		return (T) this;
 	}
 
+	/**
+	 * Send the full check-in only when its static attributes have changed,
+	 * every <code>fullCheckInInterval</code> check-ins, or when a sender
+	 * reports that the server doesn't know the content hash
+	 * ({@link UnknownContentHashException}). Other check-ins are heartbeats
+	 * carrying <code>heartbeat=true</code>, the <code>appId</code> and the
+	 * dynamic attributes (host, timestamp, ...). Every check-in carries the
+	 * <code>contentHash</code> of the static attributes.
+	 */
+	public <T extends MacGyverAgent> T withChangeAwareCheckIns(int fullCheckInInterval) {
+		this.fullCheckInInterval = fullCheckInInterval;
+		return (T) this;
+	}
+
+	/**
+	 * Spread scheduled reports over time: the first check-in is delayed by a
+	 * random part of <code>fraction</code> of the check-in interval (likewise
+	 * for thread dumps and profiles), and each following delay is randomly
+	 * lengthened or shortened by up to <code>fraction</code> of the interval.
+	 */
+	public <T extends MacGyverAgent> T withSchedulingJitter(double fraction) {
+		if (fraction < 0 || fraction >= 1) {
+			throw new IllegalArgumentException("fraction must be >= 0 and < 1");
+		}
+		this.scheduleJitter = fraction;
+		return (T) this;
+	}
+
 	public <T extends MacGyverAgent> T withCheckInInterval(int time, TimeUnit timeUnit) {
 		checkInIntervalMillis = timeUnit.toMillis(time);
 		return (T) this;
@@ -264,6 +1195,136 @@ public class MacGyverAgent {
 		return (T) this;
 	}
 
+	/**
+	 * Deliver messages from a dedicated dispatcher thread instead of the
+	 * reporting thread. Messages are held in a bounded, lock-free queue of at
+	 * most <code>capacity</code> entries and roughly
+	 * <code>maxQueuedBytes</code> of payload.
+	 */
+	public <T extends MacGyverAgent> T withAsyncDispatch(int capacity, long maxQueuedBytes,
+			OverflowPolicy overflowPolicy) {
+		return withAsyncDispatch(capacity, maxQueuedBytes, overflowPolicy, 100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Same as {@link #withAsyncDispatch(int, long, OverflowPolicy)}, with the
+	 * longest time a reporting thread will wait for space in the queue under
+	 * {@link OverflowPolicy#BLOCK}.
+	 */
+	public synchronized <T extends MacGyverAgent> T withAsyncDispatch(int capacity, long maxQueuedBytes,
+			OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit timeUnit) {
+		if (asyncDispatcher != null) {
+			throw new IllegalStateException("async dispatch already started");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be > 0");
+		}
+		this.asyncQueueCapacity = capacity;
+		this.asyncMaxQueuedBytes = maxQueuedBytes;
+		this.asyncOverflowPolicy = overflowPolicy;
+		this.asyncBlockTimeoutNanos = timeUnit.toNanos(blockTimeout);
+		return (T) this;
+	}
+
+	public long getDroppedMessageCount() {
+		AsyncDispatcher d = asyncDispatcher;
+		long count = d == null ? 0 : d.getDroppedCount();
+		for (SenderWorker w : senderWorkers.values()) {
+			count += w.droppedCount.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Give every sender its own queue of at most <code>queueCapacity</code>
+	 * messages and its own worker thread, so that a slow transport only slows
+	 * down itself. Sends that overrun the deadline for their message type are
+	 * cancelled.
+	 */
+	public <T extends MacGyverAgent> T withSenderIsolation(int queueCapacity) {
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("queueCapacity must be > 0");
+		}
+		if (sendDeadlineMillis.isEmpty()) {
+			for (MessageType type : MessageType.values()) {
+				sendDeadlineMillis.put(type, DEFAULT_SEND_DEADLINE_MILLIS);
+			}
+		}
+		this.senderQueueCapacity = queueCapacity;
+		return (T) this;
+	}
+
+	/**
+	 * Make up to <code>maxAttempts</code> attempts to deliver each message to
+	 * each sender, waiting an exponentially growing, jittered delay between
+	 * <code>initialBackoff</code> and <code>maxBackoff</code> before each
+	 * retry. Messages get an <code>idempotencyKey</code> attribute so that the
+	 * server can drop duplicates.
+	 */
+	public <T extends MacGyverAgent> T withRetries(int maxAttempts, long initialBackoff, long maxBackoff,
+			TimeUnit timeUnit) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be > 0");
+		}
+		if (initialBackoff <= 0 || maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("backoff must be > 0 and maxBackoff >= initialBackoff");
+		}
+		this.maxSendAttempts = maxAttempts;
+		this.retryBackoffMillis = timeUnit.toMillis(initialBackoff);
+		this.maxRetryBackoffMillis = timeUnit.toMillis(maxBackoff);
+		return (T) this;
+	}
+
+	/**
+	 * Keep messages of the given types (app events if none are given) that
+	 * could not be delivered in a spool of at most <code>maxBytes</code> per
+	 * sender under <code>directory</code>, and replay them in order, at most
+	 * <code>replayPerSecond</code> a second, once the sender is healthy again.
+	 * Messages older than <code>retention</code> are not replayed. Spooled
+	 * messages left by a previous run are replayed after start.
+	 */
+	public <T extends MacGyverAgent> T withSpool(File directory, long maxBytes, long retention, TimeUnit timeUnit,
+			int replayPerSecond, MessageType... types) {
+		if (replayPerSecond < 1) {
+			throw new IllegalArgumentException("replayPerSecond must be > 0");
+		}
+		this.spoolDirectory = directory;
+		this.spoolMaxBytes = maxBytes;
+		this.spoolRetentionMillis = timeUnit.toMillis(retention);
+		this.spoolReplayPerSecond = replayPerSecond;
+		this.spooledTypes = types.length == 0 ? EnumSet.of(MessageType.APP_EVENT)
+				: EnumSet.copyOf(Arrays.asList(types));
+		return (T) this;
+	}
+
+	/**
+	 * Stop handing messages to a sender for <code>cooldown</code> once it has
+	 * failed <code>failureThreshold</code> times in a row, then let a single
+	 * message through to find out whether it has recovered. Messages arriving
+	 * while the circuit is open are not sent; they are spooled if a spool is
+	 * configured for their type (see {@link #withSpool}) and dropped
+	 * otherwise.
+	 */
+	public <T extends MacGyverAgent> T withCircuitBreaker(int failureThreshold, long cooldown, TimeUnit timeUnit) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be > 0");
+		}
+		this.circuitFailureThreshold = failureThreshold;
+		this.circuitCooldownMillis = timeUnit.toMillis(cooldown);
+		senderHealth.clear();
+		return (T) this;
+	}
+
+	/**
+	 * Longest time a message of the given type may spend queued and being
+	 * sent when sender isolation is enabled. A value &lt;= 0 disables the
+	 * deadline.
+	 */
+	public <T extends MacGyverAgent> T withSendDeadline(MessageType type, long time, TimeUnit timeUnit) {
+		sendDeadlineMillis.put(type, timeUnit.toMillis(time));
+		return (T) this;
+	}
+
 	public List<StatusDecorator> getStatusDecorators() {
 		return decoratorList;
 	}
@@ -283,6 +1344,93 @@ public class MacGyverAgent {
 
 	}
 
+	/**
+	 * Runs a task and then schedules it again, so runs never pile up behind a
+	 * slow one. The delay is the period, stretched by backpressure and jitter.
+	 */
+	class RescheduledTask implements Runnable {
+
+		final Runnable task;
+		final long periodMillis;
+
+		RescheduledTask(Runnable task, long periodMillis) {
+			this.task = task;
+			this.periodMillis = periodMillis;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				schedule(this, getNextDelayMillis(periodMillis));
+			}
+		}
+	}
+
+	void schedule(Runnable task, long delayMillis) {
+		ScheduledExecutorService executor = scheduledExecutor;
+		if (executor == null) {
+			return;
+		}
+		try {
+			executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopping
+		}
+	}
+
+	/**
+	 * The period, doubled for each consecutive backpressure response up to
+	 * 32 times, at least as long as the server's last Retry-After, and
+	 * randomly stretched or shrunk by up to the jitter fraction.
+	 */
+	long getNextDelayMillis(long periodMillis) {
+		long delay = periodMillis << Math.min(getBackoffLevel(), MAX_BACKOFF_LEVEL);
+		delay = Math.max(delay, retryAfterUntil - System.currentTimeMillis());
+		double jitter = scheduleJitter;
+		if (jitter > 0) {
+			delay = (long) (delay * (1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+		}
+		return Math.max(0, delay);
+	}
+
+	void applyBackpressure(Sender sender, long retryAfterMillis) {
+		if (retryAfterMillis > 0) {
+			retryAfterUntil = Math.max(retryAfterUntil, System.currentTimeMillis() + retryAfterMillis);
+		}
+		backoffLevels.merge(sender, 1, (level, one) -> Math.min(MAX_BACKOFF_LEVEL, level + one));
+	}
+
+	int getBackoffLevel() {
+		int max = 0;
+		for (int level : backoffLevels.values()) {
+			max = Math.max(max, level);
+		}
+		return max;
+	}
+
+	long getInitialDelayMillis(long delayMillis, long periodMillis) {
+		double jitter = scheduleJitter;
+		if (jitter <= 0) {
+			return delayMillis;
+		}
+		return delayMillis + (long) (periodMillis * jitter * ThreadLocalRandom.current().nextDouble());
+	}
+
+	class ScheduledStackProfileTask implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				reportStackProfile();
+			} catch (Throwable e) {
+				logger.warn("uncaught exception", e);
+			}
+		}
+
+	}
+
 	class ScheduledCheckInTask implements Runnable {
 
 		@Override
@@ -298,6 +1446,9 @@ public class MacGyverAgent {
 
 	public MacGyverAgent withSender(Sender sender) {
 		senders.add(sender);
+		if (sender instanceof BufferingSender) {
+			((BufferingSender) sender).setBatchListener(new SenderBatchListener(sender));
+		}
 		return this;
 	}
 
@@ -307,13 +1458,20 @@ public class MacGyverAgent {
 		}
 
 		scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+		spoolsClosed = false;
+
+		synchronized (this) {
+			if (asyncDispatcher != null && !asyncDispatcher.running) {
+				asyncDispatcher = null;
+			}
+		}
 
 		if (checkInIntervalMillis <= 0) {
 			logger.info("checkInInterval is <=0 -- check in reporting will be disabled");
 		} else {
 			logger.info("scheduling checkin every {} secs", TimeUnit.MILLISECONDS.toSeconds(checkInIntervalMillis));
-			scheduledExecutor.scheduleAtFixedRate(new ScheduledCheckInTask(), 0, checkInIntervalMillis,
-					TimeUnit.MILLISECONDS);
+			schedule(new RescheduledTask(new ScheduledCheckInTask(), checkInIntervalMillis),
+					getInitialDelayMillis(0, checkInIntervalMillis));
 		}
 
 		if (threadDumpIntervalMillis <= 0) {
@@ -321,9 +1479,34 @@ public class MacGyverAgent {
 		} else {
 			logger.info("scheduling thread dump reporting every {} secs",
 					TimeUnit.MILLISECONDS.toSeconds(threadDumpIntervalMillis));
-			scheduledExecutor.scheduleAtFixedRate(new ScheduledThreadDumpTask(), threadDumpIntervalMillis,
-					threadDumpIntervalMillis,
-					TimeUnit.MILLISECONDS);
+			schedule(new RescheduledTask(new ScheduledThreadDumpTask(), threadDumpIntervalMillis),
+					getInitialDelayMillis(threadDumpIntervalMillis, threadDumpIntervalMillis));
+		}
+
+		if (spoolDirectory != null) {
+			for (Sender sender : senders) {
+				getSpool(sender);
+			}
+			spoolReplayer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "macgyver-agent-spool");
+				t.setDaemon(true);
+				return t;
+			});
+			spoolReplayer.scheduleWithFixedDelay(() -> {
+				try {
+					replaySpools();
+				} catch (Throwable e) {
+					logger.warn("uncaught exception", e);
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+
+		if (stackProfiler != null && stackProfileIntervalMillis > 0) {
+			logger.info("scheduling stack profile reporting every {} secs",
+					TimeUnit.MILLISECONDS.toSeconds(stackProfileIntervalMillis));
+			stackProfiler.start();
+			schedule(new RescheduledTask(new ScheduledStackProfileTask(), stackProfileIntervalMillis),
+					getInitialDelayMillis(stackProfileIntervalMillis, stackProfileIntervalMillis));
 		}
 	}
 
@@ -340,7 +1523,57 @@ public class MacGyverAgent {
 			scheduledExecutor.shutdown();
 			scheduledExecutor = null;
 		}
-
+		if (stackProfiler != null) {
+			stackProfiler.stop();
+		}
+		if (spoolReplayer != null) {
+			spoolReplayer.shutdownNow();
+			spoolReplayer = null;
+		}
+		// a stopped dispatcher stays in place and drops what is reported from
+		// now on, rather than a new one being started for it
+		AsyncDispatcher dispatcher = asyncDispatcher;
+		if (dispatcher != null) {
+			dispatcher.stop(5, TimeUnit.SECONDS);
+		}
+		for (SenderWorker w : senderWorkers.values()) {
+			w.stop(5, TimeUnit.SECONDS);
+		}
+		for (Sender sender : senders) {
+			try {
+				// closing flushes as well, and stops the sender's own threads
+				if (sender instanceof Closeable) {
+					((Closeable) sender).close();
+				} else if (sender instanceof Flushable) {
+					((Flushable) sender).flush();
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.warn("problem flushing " + sender + ": " + e.toString());
+			}
+		}
+		senderWorkers.clear();
+		synchronized (this) {
+			if (retryExecutor != null) {
+				retryExecutor.shutdownNow();
+				retryExecutor = null;
+			}
+		}
+		for (RetryTask task : pendingRetries) {
+			if (pendingRetries.remove(task)) {
+				spool(task.sender, task.envelope);
+			}
+		}
+		spoolsClosed = true;
+		for (MessageSpool spool : spools.values()) {
+			spool.close();
+		}
+		spools.clear();
+		synchronized (this) {
+			if (senderWatchdog != null) {
+				senderWatchdog.shutdownNow();
+				senderWatchdog = null;
+			}
+		}
 	}
 
 	public ThreadDump captureThreadDump() {
@@ -351,43 +1584,33 @@ public class MacGyverAgent {
 	}
 
 	public static String getHostIp() {
-		try {
-			return InetAddress.getLocalHost().getHostAddress();
-		}
-		catch (UnknownHostException e) {
-			logger.warn("could not determine local ip");
-			return "127.0.0.1";
-		}
+		return HostIdentityCache.getDefault().get().getHostIp();
 	}
+
 	public static String getDnsName() {
-		try {
-			return InetAddress.getLocalHost().getHostName();
-		}
-		catch (UnknownHostException e) {
-			logger.warn("could not determine local hostname");
-			return "localhost";
-		}
+		return HostIdentityCache.getDefault().get().getDnsName();
 	}
-	public static String getUnqualifiedHostname() {
-		try {
-			String host = InetAddress.getLocalHost().getHostName();
 
-			StringTokenizer st = new StringTokenizer(host, ".");
-
-			if (st.hasMoreTokens()) {
-				host = st.nextToken();
-			}
-			return host;
-		} catch (UnknownHostException | RuntimeException e) {
-			logger.warn("could not determine local hostname");
-			return "localhost";
-		}
+	public static String getUnqualifiedHostname() {
+		return HostIdentityCache.getDefault().get().getUnqualifiedHostname();
 	}
 
 	public final void reportAppEvent(ObjectNode n) {
 		sendAppEvent(n);
 	}
 
+	/**
+	 * Reports an event without building a tree for it. The event is copied,
+	 * so the caller may clear and reuse it as soon as this returns.
+	 */
+	public final void reportAppEvent(AppEvent event) {
+		AppEvent copy = event.copy();
+		if (logger.isDebugEnabled()) {
+			logger.debug("sendAppEvent {}", copy);
+		}
+		dispatch(new Envelope(copy));
+	}
+
 	public final void reportAppEvent(AppEventBuilder event) {
 
 		reportAppEvent(event.build());
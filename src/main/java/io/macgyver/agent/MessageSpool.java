@@ -0,0 +1,342 @@
+package io.macgyver.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.macgyver.agent.MacGyverAgent.MessageType;
+
+/**
+ * Append-only log of messages that could not be delivered, kept in
+ * memory-mapped segment files in one directory. Appending copies the record
+ * into the mapped segment and nothing else; the OS writes it back, so a spool
+ * survives a crash of the process but there is no fsync per message.
+ *
+ * A segment starts with a magic number and the offset of the next record to
+ * replay, followed by records of
+ * <code>length, type, timestamp, crc32, payload</code>, where the type is a
+ * fixed code rather than the enum ordinal. A zero or torn length marks the end
+ * of the records. Segments are deleted once they have been
+ * replayed; when the spool is full, the oldest segment is dropped.
+ */
+class MessageSpool {
+
+	static Logger logger = LoggerFactory.getLogger(MessageSpool.class);
+
+	static final int MAGIC = 0x4D475350;
+	static final int SEGMENT_HEADER_BYTES = 8;
+	static final int RECORD_HEADER_BYTES = 17;
+	static final int MIN_SEGMENT_BYTES = 16 * 1024;
+	static final int MAX_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+	final File directory;
+	final int segmentBytes;
+	final int maxSegments;
+	final long retentionMillis;
+
+	final Deque<Segment> segments = new ArrayDeque<>();
+	long nextSequence = 0;
+	long pendingCount = 0;
+	long droppedCount = 0;
+	long expiredCount = 0;
+
+	MessageSpool(File directory, long maxBytes, long retentionMillis) throws IOException {
+		if (maxBytes < 2 * MIN_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("maxBytes must be >= " + 2 * MIN_SEGMENT_BYTES);
+		}
+		this.directory = directory;
+		this.segmentBytes = (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4));
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+		this.retentionMillis = retentionMillis;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("could not create " + directory);
+		}
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+		Arrays.sort(files);
+		for (File f : files) {
+			long sequence;
+			try {
+				sequence = Long.parseLong(f.getName().substring(0, f.getName().length() - 4));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment s = new Segment(f, sequence);
+			if (s.isFullyRead()) {
+				s.delete();
+				continue;
+			}
+			segments.addLast(s);
+			pendingCount += s.records - s.readRecords;
+			nextSequence = sequence + 1;
+		}
+	}
+
+	/**
+	 * @return false if the message is too large for a segment
+	 */
+	synchronized boolean append(MessageType type, long timestamp, byte[] payload) throws IOException {
+		int size = RECORD_HEADER_BYTES + payload.length;
+		if (size > segmentBytes - SEGMENT_HEADER_BYTES) {
+			return false;
+		}
+		Segment tail = segments.peekLast();
+		if (tail == null || tail.writeOffset + size > segmentBytes) {
+			while (segments.size() >= maxSegments) {
+				Segment oldest = segments.removeFirst();
+				long lost = oldest.records - oldest.readRecords;
+				pendingCount -= lost;
+				droppedCount += lost;
+				oldest.delete();
+			}
+			tail = new Segment(new File(directory, String.format("%016d.seg", nextSequence)), nextSequence);
+			nextSequence++;
+			segments.addLast(tail);
+		}
+		tail.append(type, timestamp, payload);
+		pendingCount++;
+		return true;
+	}
+
+	/**
+	 * The oldest record that has not been replayed, skipping records older
+	 * than the retention period, or null if there is none.
+	 */
+	synchronized Record peek() {
+		long oldest = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+		while (true) {
+			Segment head = segments.peekFirst();
+			if (head == null) {
+				return null;
+			}
+			Record r = head.read();
+			if (r == null) {
+				if (head == segments.peekLast()) {
+					return null;
+				}
+				segments.removeFirst();
+				head.delete();
+				continue;
+			}
+			if (r.timestamp >= oldest) {
+				return r;
+			}
+			head.commit(r);
+			pendingCount--;
+			expiredCount++;
+		}
+	}
+
+	/**
+	 * Marks the record returned by {@link #peek()} as replayed.
+	 */
+	synchronized void commit(Record r) {
+		Segment head = segments.peekFirst();
+		if (head != null && head.sequence == r.sequence && head.readOffset == r.offset) {
+			head.commit(r);
+			pendingCount--;
+		}
+	}
+
+	synchronized long getPendingCount() {
+		return pendingCount;
+	}
+
+	synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	synchronized long getExpiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * Writes the segments back to disk and lets go of them. The mappings
+	 * themselves are only released once the buffers are garbage collected.
+	 */
+	synchronized void close() {
+		for (Segment s : segments) {
+			s.buffer.force();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * The code a message type is stored as. Existing codes must never change,
+	 * new types get new codes.
+	 */
+	static byte toCode(MessageType type) {
+		switch (type) {
+		case APP_EVENT:
+			return 0;
+		case APP_CHECK_IN:
+			return 1;
+		case THREAD_DUMP:
+			return 2;
+		case APP_CONFIG_DUMP:
+			return 3;
+		case STACK_PROFILE:
+			return 4;
+		default:
+			throw new IllegalArgumentException("no spool code for " + type);
+		}
+	}
+
+	/**
+	 * @return the message type stored as <code>code</code>, or null if the
+	 *         code is unknown
+	 */
+	static MessageType fromCode(int code) {
+		switch (code) {
+		case 0:
+			return MessageType.APP_EVENT;
+		case 1:
+			return MessageType.APP_CHECK_IN;
+		case 2:
+			return MessageType.THREAD_DUMP;
+		case 3:
+			return MessageType.APP_CONFIG_DUMP;
+		case 4:
+			return MessageType.STACK_PROFILE;
+		default:
+			return null;
+		}
+	}
+
+	static class Record {
+
+		final long sequence;
+		final int offset;
+		final int nextOffset;
+		final MessageType type;
+		final long timestamp;
+		final byte[] payload;
+
+		Record(long sequence, int offset, int nextOffset, MessageType type, long timestamp, byte[] payload) {
+			this.sequence = sequence;
+			this.offset = offset;
+			this.nextOffset = nextOffset;
+			this.type = type;
+			this.timestamp = timestamp;
+			this.payload = payload;
+		}
+	}
+
+	class Segment {
+
+		final File file;
+		final long sequence;
+		final MappedByteBuffer buffer;
+		int writeOffset = SEGMENT_HEADER_BYTES;
+		int readOffset = SEGMENT_HEADER_BYTES;
+		long records = 0;
+		long readRecords = 0;
+
+		Segment(File file, long sequence) throws IOException {
+			this.file = file;
+			this.sequence = sequence;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+			}
+			if (buffer.getInt(0) != MAGIC) {
+				buffer.putInt(4, SEGMENT_HEADER_BYTES);
+				buffer.putInt(0, MAGIC);
+				return;
+			}
+			int replayed = buffer.getInt(4);
+			int offset = SEGMENT_HEADER_BYTES;
+			while (true) {
+				int next = validRecordEnd(offset);
+				if (next < 0) {
+					break;
+				}
+				records++;
+				if (offset < replayed) {
+					readRecords++;
+					readOffset = next;
+				}
+				offset = next;
+			}
+			writeOffset = offset;
+		}
+
+		/**
+		 * The offset after the record at <code>offset</code>, or -1 if there is
+		 * no intact record there.
+		 */
+		int validRecordEnd(int offset) {
+			if (offset + RECORD_HEADER_BYTES > segmentBytes) {
+				return -1;
+			}
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + RECORD_HEADER_BYTES + length > segmentBytes
+					|| fromCode(buffer.get(offset + 4)) == null) {
+				return -1;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(slice(offset + RECORD_HEADER_BYTES, length));
+			if ((int) crc.getValue() != buffer.getInt(offset + 13)) {
+				return -1;
+			}
+			return offset + RECORD_HEADER_BYTES + length;
+		}
+
+		void append(MessageType type, long timestamp, byte[] payload) {
+			int offset = writeOffset;
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			buffer.put(offset + 4, toCode(type));
+			buffer.putLong(offset + 5, timestamp);
+			buffer.putInt(offset + 13, (int) crc.getValue());
+			slice(offset + RECORD_HEADER_BYTES, payload.length).put(payload);
+			// the length goes last, so a torn record is never mistaken for a whole one
+			buffer.putInt(offset, payload.length);
+			writeOffset = offset + RECORD_HEADER_BYTES + payload.length;
+			records++;
+		}
+
+		Record read() {
+			if (readOffset >= writeOffset) {
+				return null;
+			}
+			int length = buffer.getInt(readOffset);
+			byte[] payload = new byte[length];
+			slice(readOffset + RECORD_HEADER_BYTES, length).get(payload);
+			return new Record(sequence, readOffset, readOffset + RECORD_HEADER_BYTES + length,
+					fromCode(buffer.get(readOffset + 4)), buffer.getLong(readOffset + 5), payload);
+		}
+
+		ByteBuffer slice(int offset, int length) {
+			ByteBuffer b = buffer.duplicate();
+			b.limit(offset + length);
+			b.position(offset);
+			return b;
+		}
+
+		void commit(Record r) {
+			readOffset = r.nextOffset;
+			readRecords++;
+			buffer.putInt(4, readOffset);
+		}
+
+		boolean isFullyRead() {
+			return records == readRecords;
+		}
+
+		void delete() {
+			if (!file.delete()) {
+				logger.warn("could not delete spool segment {}", file);
+			}
+		}
+	}
+}
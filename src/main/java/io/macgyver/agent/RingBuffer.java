@@ -0,0 +1,108 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer/multi-consumer queue. Each slot carries a
+ * sequence number that tells producers and consumers whether the slot is free
+ * for the current lap, so neither side ever takes a lock.
+ */
+class RingBuffer<E> {
+
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be > 0");
+		}
+		// a single slot cannot tell "full" from "free for the next lap"
+		int size = Math.max(2, Integer.highestOneBit(capacity));
+		if (size < capacity) {
+			size = size << 1;
+		}
+		this.mask = size - 1;
+		this.buffer = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element to the tail of the queue.
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer(E e) {
+		long pos = tail.get();
+		int idx;
+		for (;;) {
+			idx = (int) (pos & mask);
+			long dif = sequences.get(idx) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (dif < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+		buffer.lazySet(idx, e);
+		sequences.lazySet(idx, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Removes the element at the head of the queue.
+	 *
+	 * @return the element, or null if the queue is empty
+	 */
+	E poll() {
+		long pos = head.get();
+		int idx;
+		for (;;) {
+			idx = (int) (pos & mask);
+			long dif = sequences.get(idx) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = head.get();
+			} else if (dif < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+		E e = buffer.get(idx);
+		buffer.lazySet(idx, null);
+		sequences.lazySet(idx, pos + mask + 1);
+		return e;
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, capacity());
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,135 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Success and failure counts of a single sender, and its circuit breaker.
+ * After <code>failureThreshold</code> consecutive failures the circuit opens
+ * and no messages are handed to the sender for the cooldown period. After
+ * that a single message is let through: if it succeeds the circuit closes,
+ * otherwise it opens for another cooldown period.
+ */
+public class SenderHealth {
+
+	public static enum CircuitState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	final int failureThreshold;
+	final long cooldownMillis;
+
+	final AtomicLong successCount = new AtomicLong();
+	final AtomicLong failureCount = new AtomicLong();
+	final AtomicLong consecutiveFailures = new AtomicLong();
+	final AtomicLong rejectedCount = new AtomicLong();
+	final AtomicLong trialStart = new AtomicLong();
+
+	volatile long openUntil = 0;
+	volatile long lastSuccess = 0;
+	volatile long lastFailure = 0;
+	volatile String lastError;
+
+	/**
+	 * @param failureThreshold
+	 *            consecutive failures that open the circuit; &lt;= 0 never
+	 *            opens it
+	 */
+	SenderHealth(int failureThreshold, long cooldownMillis) {
+		this.failureThreshold = failureThreshold;
+		this.cooldownMillis = cooldownMillis;
+	}
+
+	/**
+	 * Whether a message may be handed to the sender now. While the circuit is
+	 * half open only one caller at a time gets true, unless the trial has
+	 * been outstanding for a whole cooldown period.
+	 */
+	boolean allowRequest() {
+		if (openUntil == 0) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (now < openUntil) {
+			return false;
+		}
+		long started = trialStart.get();
+		if (started != 0 && now - started < cooldownMillis) {
+			return false;
+		}
+		return trialStart.compareAndSet(started, now);
+	}
+
+	void recordSuccess() {
+		successCount.incrementAndGet();
+		consecutiveFailures.set(0);
+		lastSuccess = System.currentTimeMillis();
+		openUntil = 0;
+		trialStart.set(0);
+	}
+
+	/**
+	 * @return true if this failure opened the circuit
+	 */
+	boolean recordFailure(Exception e) {
+		failureCount.incrementAndGet();
+		long failures = consecutiveFailures.incrementAndGet();
+		lastFailure = System.currentTimeMillis();
+		lastError = e.toString();
+		boolean trial = trialStart.getAndSet(0) != 0;
+		if (failureThreshold > 0 && (trial || failures == failureThreshold)) {
+			openUntil = lastFailure + cooldownMillis;
+			return true;
+		}
+		return false;
+	}
+
+	void recordRejected() {
+		rejectedCount.incrementAndGet();
+	}
+
+	public CircuitState getCircuitState() {
+		long until = openUntil;
+		if (until == 0) {
+			return CircuitState.CLOSED;
+		}
+		return System.currentTimeMillis() < until ? CircuitState.OPEN : CircuitState.HALF_OPEN;
+	}
+
+	public long getSuccessCount() {
+		return successCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public long getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+
+	/**
+	 * Messages not handed to the sender because the circuit was open.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getLastSuccessTime() {
+		return lastSuccess;
+	}
+
+	public long getLastFailureTime() {
+		return lastFailure;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	@Override
+	public String toString() {
+		return "SenderHealth [circuit=" + getCircuitState() + ", successCount=" + getSuccessCount()
+				+ ", failureCount=" + getFailureCount() + ", consecutiveFailures=" + getConsecutiveFailures()
+				+ ", rejectedCount=" + getRejectedCount() + ", lastError=" + lastError + "]";
+	}
+}
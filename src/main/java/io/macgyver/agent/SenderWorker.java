@@ -0,0 +1,128 @@
+package io.macgyver.agent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.macgyver.agent.MacGyverAgent.Sender;
+
+/**
+ * Gives a single sender its own bounded queue and worker thread, so that a
+ * slow or hung transport only holds back its own messages.
+ */
+class SenderWorker {
+
+	static Logger logger = LoggerFactory.getLogger(SenderWorker.class);
+
+	final Sender sender;
+	final ThreadPoolExecutor executor;
+	final ScheduledExecutorService watchdog;
+	final BiConsumer<Sender, Envelope> delivery;
+	final BiConsumer<Sender, Envelope> expiry;
+
+	final AtomicLong droppedCount = new AtomicLong();
+	final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * @param expiry
+	 *            called with messages whose deadline passed while they were
+	 *            still queued, so they never reached the sender
+	 */
+	SenderWorker(Sender sender, String name, int queueCapacity, ScheduledExecutorService watchdog,
+			BiConsumer<Sender, Envelope> delivery, BiConsumer<Sender, Envelope> expiry) {
+		this.sender = sender;
+		this.watchdog = watchdog;
+		this.delivery = delivery;
+		this.expiry = expiry;
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * Queues a message for this sender. If <code>deadlineMillis</code> is
+	 * positive, the send is cancelled (interrupting the worker if it has
+	 * already started) once that much time has passed. A message that is
+	 * still queued by then is handed to the expiry callback instead.
+	 *
+	 * @return false if the queue was full and the message was dropped
+	 */
+	boolean submit(Envelope envelope, long deadlineMillis) {
+		SendTask task = new SendTask(envelope, new AtomicBoolean());
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			long count = droppedCount.incrementAndGet();
+			if (count == 1 || count % 1000 == 0) {
+				logger.warn("queue for {} is full -- dropped {} message(s) so far (last was {})", sender, count,
+						envelope.type);
+			}
+			return false;
+		}
+		if (deadlineMillis > 0) {
+			task.timeout = watchdog.schedule(() -> {
+				if (task.started.compareAndSet(false, true)) {
+					task.cancel(false);
+					timeoutCount.incrementAndGet();
+					logger.warn("{} via {} was still queued after {}ms -- not sent", envelope.type, sender,
+							deadlineMillis);
+					expiry.accept(sender, envelope);
+				} else if (task.cancel(true)) {
+					timeoutCount.incrementAndGet();
+					logger.warn("{} via {} did not complete within {}ms -- cancelled", envelope.type, sender,
+							deadlineMillis);
+				}
+			}, deadlineMillis, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	void stop(long timeout, TimeUnit unit) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, unit)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	class SendTask extends FutureTask<Void> {
+
+		volatile Future<?> timeout;
+		// claimed either by the worker, to send, or by the watchdog, to expire
+		final AtomicBoolean started;
+
+		SendTask(Envelope envelope, AtomicBoolean started) {
+			super(() -> {
+				if (started.compareAndSet(false, true)) {
+					delivery.accept(sender, envelope);
+				}
+			}, null);
+			this.started = started;
+		}
+
+		@Override
+		protected void done() {
+			Future<?> f = timeout;
+			if (f != null) {
+				f.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package io.macgyver.agent;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Samples the stacks of RUNNABLE threads at a fixed rate and counts how often
+ * each distinct stack is seen. Frames are interned to int ids and stacks are
+ * counted by their frame ids. At most <code>maxStacks</code> distinct stacks
+ * are counted per interval; samples of stacks beyond that are only counted as
+ * dropped, so memory stays bounded however long the profiler runs.
+ */
+class StackProfiler {
+
+	static Logger logger = LoggerFactory.getLogger(StackProfiler.class);
+
+	final ThreadDump threadDump;
+	final long samplePeriodMicros;
+	final int maxStacks;
+
+	ScheduledExecutorService sampler;
+
+	Map<StackTraceElement, Integer> frameIds = new HashMap<>();
+	List<StackTraceElement> frames = new ArrayList<>();
+	Map<StackKey, long[]> counts = new HashMap<>();
+	long sampleCount = 0;
+	long droppedCount = 0;
+	long intervalStart = System.currentTimeMillis();
+
+	StackProfiler(ThreadMXBean threadMXBean, int samplesPerSecond, int maxStackDepth, int maxStacks) {
+		if (samplesPerSecond < 1 || samplesPerSecond > 1000) {
+			throw new IllegalArgumentException("samplesPerSecond must be between 1 and 1000");
+		}
+		if (maxStacks < 1) {
+			throw new IllegalArgumentException("maxStacks must be > 0");
+		}
+		this.threadDump = new ThreadDump(threadMXBean).withThreadStateFilter(Thread.State.RUNNABLE)
+				.withLockedMonitors(false, false).withMaxStackDepth(maxStackDepth);
+		this.samplePeriodMicros = TimeUnit.SECONDS.toMicros(1) / samplesPerSecond;
+		this.maxStacks = maxStacks;
+	}
+
+	synchronized void start() {
+		if (sampler != null) {
+			return;
+		}
+		sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "macgyver-agent-profiler");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleAtFixedRate(() -> {
+			try {
+				sample();
+			} catch (RuntimeException e) {
+				logger.warn("problem sampling stacks", e);
+			}
+		}, samplePeriodMicros, samplePeriodMicros, TimeUnit.MICROSECONDS);
+	}
+
+	synchronized void stop() {
+		if (sampler != null) {
+			sampler.shutdownNow();
+			sampler = null;
+		}
+	}
+
+	void sample() {
+		ThreadInfo[] threads = threadDump.capture();
+		long self = Thread.currentThread().getId();
+		synchronized (this) {
+			for (ThreadInfo t : threads) {
+				if (t.getThreadId() == self || t.getStackTrace().length == 0) {
+					continue;
+				}
+				sampleCount++;
+				StackKey key = toKey(t.getStackTrace());
+				long[] count = key == null ? null : counts.get(key);
+				if (count == null) {
+					if (key == null || counts.size() >= maxStacks) {
+						droppedCount++;
+						continue;
+					}
+					count = new long[1];
+					counts.put(key, count);
+				}
+				count[0]++;
+			}
+		}
+	}
+
+	/**
+	 * Maps a stack to its frame ids. Once the stack table is full, frames are
+	 * no longer interned and a stack with an unknown frame yields null.
+	 */
+	private StackKey toKey(StackTraceElement[] stack) {
+		boolean full = counts.size() >= maxStacks;
+		int[] ids = new int[stack.length];
+		for (int i = 0; i < stack.length; i++) {
+			Integer id = frameIds.get(stack[i]);
+			if (id == null) {
+				if (full) {
+					return null;
+				}
+				id = frames.size();
+				frames.add(stack[i]);
+				frameIds.put(stack[i], id);
+			}
+			ids[i] = id;
+		}
+		return new StackKey(ids);
+	}
+
+	/**
+	 * Writes the counts collected since the previous report into
+	 * <code>n</code> and starts a new interval. Stacks are written in the
+	 * collapsed format that flame graph tools read: one line per stack, frames
+	 * from the root down separated by <code>;</code>, then a space and the
+	 * number of samples.
+	 */
+	void report(ObjectNode n) {
+		Map<StackKey, long[]> reported;
+		List<StackTraceElement> reportedFrames;
+		long samples;
+		long dropped;
+		long start;
+		synchronized (this) {
+			reported = counts;
+			reportedFrames = frames;
+			samples = sampleCount;
+			dropped = droppedCount;
+			start = intervalStart;
+			counts = new HashMap<>();
+			frames = new ArrayList<>();
+			frameIds = new HashMap<>();
+			sampleCount = 0;
+			droppedCount = 0;
+			intervalStart = System.currentTimeMillis();
+		}
+
+		String[] names = new String[reportedFrames.size()];
+		for (int i = 0; i < names.length; i++) {
+			StackTraceElement e = reportedFrames.get(i);
+			names[i] = e.getClassName() + "." + e.getMethodName();
+		}
+		// stacks that only differ in line numbers collapse into the same line
+		Map<String, long[]> collapsed = new LinkedHashMap<>();
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<StackKey, long[]> entry : reported.entrySet()) {
+			int[] ids = entry.getKey().frameIds;
+			sb.setLength(0);
+			for (int i = ids.length - 1; i >= 0; i--) {
+				sb.append(names[ids[i]]);
+				if (i > 0) {
+					sb.append(';');
+				}
+			}
+			long[] count = collapsed.computeIfAbsent(sb.toString(), k -> new long[1]);
+			count[0] += entry.getValue()[0];
+		}
+		sb.setLength(0);
+		for (Map.Entry<String, long[]> entry : collapsed.entrySet()) {
+			sb.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+		}
+
+		n.put("profileStartTs", start);
+		n.put("profileEndTs", System.currentTimeMillis());
+		n.put("samplePeriodMicros", samplePeriodMicros);
+		n.put("sampleCount", samples);
+		n.put("droppedSampleCount", dropped);
+		n.put("collapsedStacks", sb.toString());
+	}
+
+	static class StackKey {
+
+		final int[] frameIds;
+		final int hash;
+
+		StackKey(int[] frameIds) {
+			this.frameIds = frameIds;
+			this.hash = Arrays.hashCode(frameIds);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof StackKey && Arrays.equals(frameIds, ((StackKey) o).frameIds);
+		}
+	}
+}
@@ -1,15 +1,38 @@
 
 package io.macgyver.agent;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
 import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
 
 /**
  * A convenience class for getting a thread dump. This has been copy-pasted from
@@ -18,12 +41,120 @@ import java.nio.charset.Charset;
 public class ThreadDump {
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
 
+	/**
+	 * How a thread dump is rendered: the classic text format or the structured
+	 * JSON format written by {@link ThreadDump#dumpStructured}.
+	 */
+	public static enum Format {
+		TEXT, STRUCTURED
+	}
+
+	// getThreadInfo(long[], boolean, boolean, int) only exists on Java 10+
+	private static final Method GET_THREAD_INFO_WITH_DEPTH = findGetThreadInfoWithDepth();
+
 	private final ThreadMXBean threadMXBean;
 
+	private boolean grouped = false;
+	private Pattern threadNameFilter;
+	private Set<Thread.State> threadStateFilter;
+	private int maxStackDepth = Integer.MAX_VALUE;
+	private boolean lockedMonitors = true;
+	private boolean lockedSynchronizers = true;
+	private int captureBatchSize = 0;
+
+	private long captureNanos;
+	private long longestPauseNanos;
+
 	public ThreadDump(ThreadMXBean threadMXBean) {
 		this.threadMXBean = threadMXBean;
 	}
 
+	/**
+	 * Group threads that have the same state, lock class and stack into a
+	 * single entry listing the names and ids of its threads. Groups with the
+	 * most threads come first. Applies to both the text and structured
+	 * formats.
+	 */
+	public ThreadDump withGrouping(boolean grouped) {
+		this.grouped = grouped;
+		return this;
+	}
+
+	public boolean isGrouped() {
+		return grouped;
+	}
+
+	/**
+	 * Only capture threads whose name matches the pattern. The filter is
+	 * applied before the stacks are captured, using thread info without
+	 * stacks, which is cheap to get.
+	 */
+	public ThreadDump withThreadNameFilter(Pattern pattern) {
+		this.threadNameFilter = pattern;
+		return this;
+	}
+
+	/**
+	 * Only capture threads in one of the given states. Like the name filter,
+	 * this is applied before the stacks are captured.
+	 */
+	public ThreadDump withThreadStateFilter(Thread.State... states) {
+		this.threadStateFilter = states.length == 0 ? null : EnumSet.of(states[0], states);
+		return this;
+	}
+
+	/**
+	 * Capture at most <code>depth</code> frames per thread. When locked
+	 * monitors or synchronizers are also captured on Java 8, the full stacks
+	 * are captured and then cut to <code>depth</code>.
+	 */
+	public ThreadDump withMaxStackDepth(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("depth must be > 0");
+		}
+		this.maxStackDepth = depth;
+		return this;
+	}
+
+	/**
+	 * Whether to capture the monitors and ownable synchronizers each thread
+	 * holds. Both are on by default and make each capture more expensive.
+	 */
+	public ThreadDump withLockedMonitors(boolean lockedMonitors, boolean lockedSynchronizers) {
+		this.lockedMonitors = lockedMonitors;
+		this.lockedSynchronizers = lockedSynchronizers;
+		return this;
+	}
+
+	/**
+	 * Capture threads in batches of at most <code>batchSize</code> threads, so
+	 * that the JVM is paused several times briefly rather than once for all
+	 * threads. The threads of a dump are then not all captured at the same
+	 * instant.
+	 */
+	public ThreadDump withCaptureBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be > 0");
+		}
+		this.captureBatchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Total time spent in the ThreadMXBean by the last {@link #capture()}.
+	 */
+	public long getLastCaptureTime(TimeUnit unit) {
+		return unit.convert(captureNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Time spent in the longest single ThreadMXBean call of the last
+	 * {@link #capture()}, which bounds the longest pause it caused.
+	 */
+	public long getLastLongestPause(TimeUnit unit) {
+		return unit.convert(longestPauseNanos, TimeUnit.NANOSECONDS);
+	}
+
 	/**
 	 * Dumps all of the threads' current information to an output stream.
 	 *
@@ -31,9 +162,174 @@ public class ThreadDump {
 	 *            an output stream
 	 */
 	public void dump(Writer w) {
-		final ThreadInfo[] threads = this.threadMXBean.dumpAllThreads(true, true);
+		dump(capture(), w);
+	}
+
+	/**
+	 * Captures the current information of all threads.
+	 */
+	public ThreadInfo[] capture() {
+		captureNanos = 0;
+		longestPauseNanos = 0;
+		if (threadNameFilter == null && threadStateFilter == null && maxStackDepth == Integer.MAX_VALUE
+				&& captureBatchSize == 0) {
+			long start = System.nanoTime();
+			ThreadInfo[] threads = this.threadMXBean.dumpAllThreads(lockedMonitors, lockedSynchronizers);
+			recordPause(System.nanoTime() - start);
+			return threads;
+		}
+
+		long[] ids = threadMXBean.getAllThreadIds();
+		if (threadNameFilter != null || threadStateFilter != null) {
+			ThreadInfo[] candidates = getThreadInfo(ids, false);
+			long[] selected = new long[candidates.length];
+			int count = 0;
+			for (ThreadInfo t : candidates) {
+				if ((threadNameFilter == null || threadNameFilter.matcher(t.getThreadName()).matches())
+						&& (threadStateFilter == null || threadStateFilter.contains(t.getThreadState()))) {
+					selected[count++] = t.getThreadId();
+				}
+			}
+			ids = Arrays.copyOf(selected, count);
+		}
+		return getThreadInfo(ids, true);
+	}
+
+	/**
+	 * Gets thread info in batches, leaving out threads that have terminated.
+	 * Without <code>withStacks</code> only the name and state are needed.
+	 */
+	private ThreadInfo[] getThreadInfo(long[] ids, boolean withStacks) {
+		List<ThreadInfo> threads = new ArrayList<>(ids.length);
+		int step = captureBatchSize > 0 ? captureBatchSize : Math.max(1, ids.length);
+		for (int from = 0; from < ids.length; from += step) {
+			long[] batch = from == 0 && step >= ids.length ? ids
+					: Arrays.copyOfRange(ids, from, Math.min(ids.length, from + step));
+			long start = System.nanoTime();
+			ThreadInfo[] infos = withStacks ? getThreadInfoWithStacks(batch) : threadMXBean.getThreadInfo(batch, 0);
+			recordPause(System.nanoTime() - start);
+			for (ThreadInfo t : infos) {
+				if (t != null) {
+					threads.add(t);
+				}
+			}
+		}
+		return threads.toArray(new ThreadInfo[threads.size()]);
+	}
+
+	private ThreadInfo[] getThreadInfoWithStacks(long[] ids) {
+		if (!lockedMonitors && !lockedSynchronizers) {
+			return threadMXBean.getThreadInfo(ids, maxStackDepth);
+		}
+		if (maxStackDepth != Integer.MAX_VALUE && GET_THREAD_INFO_WITH_DEPTH != null) {
+			try {
+				return (ThreadInfo[]) GET_THREAD_INFO_WITH_DEPTH.invoke(threadMXBean, ids, lockedMonitors,
+						lockedSynchronizers, maxStackDepth);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		if (maxStackDepth != Integer.MAX_VALUE && threadMXBean == ManagementFactory.getThreadMXBean()) {
+			return getThreadInfoWithCutStacks(ids);
+		}
+		return threadMXBean.getThreadInfo(ids, lockedMonitors, lockedSynchronizers);
+	}
+
+	/**
+	 * Java 8 has no depth limit together with locks, and a ThreadInfo can't be
+	 * changed, so the platform bean's open data is cut to the depth and turned
+	 * back into ThreadInfo.
+	 */
+	ThreadInfo[] getThreadInfoWithCutStacks(long[] ids) {
+		CompositeData[] data;
+		try {
+			data = (CompositeData[]) ManagementFactory.getPlatformMBeanServer().invoke(
+					new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME), "getThreadInfo",
+					new Object[] { ids, lockedMonitors, lockedSynchronizers },
+					new String[] { long[].class.getName(), boolean.class.getName(), boolean.class.getName() });
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+		ThreadInfo[] threads = new ThreadInfo[data.length];
+		for (int i = 0; i < data.length; i++) {
+			threads[i] = data[i] == null ? null : ThreadInfo.from(cutStack(data[i], maxStackDepth));
+		}
+		return threads;
+	}
+
+	/**
+	 * The thread info with at most <code>depth</code> frames and without the
+	 * monitors locked in the frames that were cut.
+	 */
+	static CompositeData cutStack(CompositeData info, int depth) {
+		CompositeData[] stack = (CompositeData[]) info.get("stackTrace");
+		if (stack.length <= depth) {
+			return info;
+		}
+		CompositeType type = info.getCompositeType();
+		String[] names = type.keySet().toArray(new String[0]);
+		Object[] values = info.getAll(names);
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals("stackTrace")) {
+				values[i] = Arrays.copyOf(stack, depth);
+			} else if (names[i].equals("lockedMonitors")) {
+				CompositeData[] monitors = (CompositeData[]) values[i];
+				CompositeData[] kept = monitors.clone();
+				int count = 0;
+				for (CompositeData m : monitors) {
+					if ((Integer) m.get("lockedStackDepth") < depth) {
+						kept[count++] = m;
+					}
+				}
+				values[i] = Arrays.copyOf(kept, count);
+			}
+		}
+		try {
+			return new CompositeDataSupport(type, names, values);
+		} catch (OpenDataException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void recordPause(long nanos) {
+		captureNanos += nanos;
+		longestPauseNanos = Math.max(longestPauseNanos, nanos);
+	}
+
+	private static Method findGetThreadInfoWithDepth() {
+		try {
+			return ThreadMXBean.class.getMethod("getThreadInfo", long[].class, boolean.class, boolean.class,
+					int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Dumps previously captured thread information to an output stream.
+	 *
+	 * @param threads
+	 *            the result of {@link #capture()}
+	 * @param w
+	 *            an output stream
+	 */
+	public void dump(ThreadInfo[] threads, Writer w) {
 		final PrintWriter writer = new PrintWriter(w);
 
+		if (grouped) {
+			for (StackGroup group : group(threads)) {
+				dumpGroup(group, writer);
+			}
+			writer.println();
+			writer.flush();
+			return;
+		}
+
 		for (int ti = threads.length - 1; ti >= 0; ti--) {
 			final ThreadInfo t = threads[ti];
 			writer.printf("%s id=%d state=%s",
@@ -96,6 +392,318 @@ public class ThreadDump {
 		writer.flush();
 	}
 
-	
-	
+	private void dumpGroup(StackGroup group, PrintWriter writer) {
+		final ThreadInfo first = group.threads.get(0);
+		final int count = group.threads.size();
+		writer.printf("%d %s with state=%s", count, count == 1 ? "thread" : "threads", first.getThreadState());
+		final LockInfo lock = first.getLockInfo();
+		if (lock != null) {
+			writer.printf(" %s (a %s)", first.getThreadState() == Thread.State.BLOCKED ? "waiting to lock" : "waiting on",
+					lock.getClassName());
+		}
+		writer.println();
+
+		for (ThreadInfo t : group.threads) {
+			writer.printf("    %s id=%d", t.getThreadName(), t.getThreadId());
+			if (t.getLockInfo() != null) {
+				writer.printf(" lock=<0x%08x>", t.getLockInfo().getIdentityHashCode());
+			}
+			if (t.getLockOwnerName() != null) {
+				writer.printf(" owned by %s id=%d", t.getLockOwnerName(), t.getLockOwnerId());
+			}
+			writer.println();
+		}
+
+		final StackTraceElement[] elements = first.getStackTrace();
+		final MonitorInfo[] monitors = first.getLockedMonitors();
+		for (int i = 0; i < elements.length; i++) {
+			writer.printf("    at %s%n", elements[i]);
+			for (MonitorInfo monitor : monitors) {
+				if (monitor.getLockedStackDepth() == i) {
+					writer.printf("      - locked (a %s)%n", monitor.getClassName());
+				}
+			}
+		}
+		writer.println();
+	}
+
+	/**
+	 * Groups threads by state, lock class and stack. Groups are ordered by
+	 * size, largest first; groups of the same size keep the order in which
+	 * the dump would otherwise have listed their first thread.
+	 */
+	static List<StackGroup> group(ThreadInfo[] threads) {
+		Map<StackGroup, StackGroup> groups = new LinkedHashMap<>();
+		for (int ti = threads.length - 1; ti >= 0; ti--) {
+			StackGroup key = new StackGroup(threads[ti]);
+			StackGroup group = groups.get(key);
+			if (group == null) {
+				groups.put(key, key);
+				group = key;
+			}
+			group.threads.add(threads[ti]);
+		}
+		List<StackGroup> sorted = new ArrayList<>(groups.values());
+		sorted.sort((a, b) -> Integer.compare(b.threads.size(), a.threads.size()));
+		return sorted;
+	}
+
+	static class StackGroup {
+
+		final Thread.State state;
+		final String lockClassName;
+		final StackTraceElement[] stack;
+		final int hash;
+		final List<ThreadInfo> threads = new ArrayList<>();
+
+		StackGroup(ThreadInfo t) {
+			this.state = t.getThreadState();
+			this.lockClassName = t.getLockInfo() == null ? null : t.getLockInfo().getClassName();
+			this.stack = t.getStackTrace();
+			int h = state.hashCode();
+			h = 31 * h + (lockClassName == null ? 0 : lockClassName.hashCode());
+			this.hash = 31 * h + Arrays.hashCode(stack);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof StackGroup)) {
+				return false;
+			}
+			StackGroup other = (StackGroup) o;
+			return hash == other.hash && state == other.state
+					&& (lockClassName == null ? other.lockClassName == null : lockClassName.equals(other.lockClassName))
+					&& Arrays.equals(stack, other.stack);
+		}
+	}
+
+	/**
+	 * Writes previously captured thread information as JSON. Stack frames and
+	 * class names are interned: each distinct frame and class name is written
+	 * once, in the <code>frames</code> and <code>classes</code> tables that
+	 * follow the threads, and threads refer to them by index.
+	 *
+	 * <pre>
+	 * {
+	 *   "threads": [ { "name", "id", "state", "suspended", "inNative",
+	 *                  "lock": { "class", "identityHashCode" }, "lockOwnerName", "lockOwnerId",
+	 *                  "stack": [ frame, ... ],
+	 *                  "lockedMonitors": [ { "class", "identityHashCode", "depth" } ],
+	 *                  "lockedSynchronizers": [ { "class", "identityHashCode" } ] } ],
+	 *   "frames": [ [ class, "method", "file", line ] ],
+	 *   "classes": [ "java.lang.Thread", ... ]
+	 * }
+	 * </pre>
+	 *
+	 * With {@link #withGrouping(boolean) grouping} the <code>threads</code>
+	 * field is replaced by
+	 *
+	 * <pre>
+	 *   "groups": [ { "count", "state", "lock": { "class" },
+	 *                 "threads": [ { "name", "id", "lockIdentityHashCode", "lockOwnerName", "lockOwnerId" } ],
+	 *                 "stack": [ frame, ... ],
+	 *                 "lockedMonitors": [ { "class", "depth" } ] } ]
+	 * </pre>
+	 *
+	 * @param threads
+	 *            the result of {@link #capture()}
+	 * @param gen
+	 *            the generator to write to
+	 */
+	public void dumpStructured(ThreadInfo[] threads, JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		writeStructuredFields(threads, gen);
+		gen.writeEndObject();
+		gen.flush();
+	}
+
+	/**
+	 * Writes the <code>threads</code>, <code>frames</code> and
+	 * <code>classes</code> fields of a structured dump into an object that the
+	 * caller has started.
+	 */
+	void writeStructuredFields(ThreadInfo[] threads, JsonGenerator gen) throws IOException {
+		StructuredWriter structured = new StructuredWriter(gen);
+		if (grouped) {
+			gen.writeArrayFieldStart("groups");
+			for (StackGroup group : group(threads)) {
+				structured.writeGroup(group);
+			}
+			gen.writeEndArray();
+			structured.writeTables();
+			return;
+		}
+		gen.writeArrayFieldStart("threads");
+		for (int ti = threads.length - 1; ti >= 0; ti--) {
+			structured.writeThread(threads[ti]);
+		}
+		gen.writeEndArray();
+		structured.writeTables();
+	}
+
+	static class StructuredWriter {
+
+		final JsonGenerator gen;
+		final Map<StackTraceElement, Integer> frameIndex = new HashMap<>();
+		final List<StackTraceElement> frames = new ArrayList<>();
+		final Map<String, Integer> classIndex = new HashMap<>();
+		final List<String> classes = new ArrayList<>();
+
+		StructuredWriter(JsonGenerator gen) {
+			this.gen = gen;
+		}
+
+		int internFrame(StackTraceElement element) {
+			Integer idx = frameIndex.get(element);
+			if (idx == null) {
+				internClass(element.getClassName());
+				idx = frames.size();
+				frames.add(element);
+				frameIndex.put(element, idx);
+			}
+			return idx;
+		}
+
+		int internClass(String className) {
+			Integer idx = classIndex.get(className);
+			if (idx == null) {
+				idx = classes.size();
+				classes.add(className);
+				classIndex.put(className, idx);
+			}
+			return idx;
+		}
+
+		void writeThread(ThreadInfo t) throws IOException {
+			gen.writeStartObject();
+			gen.writeStringField("name", t.getThreadName());
+			gen.writeNumberField("id", t.getThreadId());
+			gen.writeStringField("state", t.getThreadState().name());
+			if (t.isSuspended()) {
+				gen.writeBooleanField("suspended", true);
+			}
+			if (t.isInNative()) {
+				gen.writeBooleanField("inNative", true);
+			}
+			LockInfo lock = t.getLockInfo();
+			if (lock != null) {
+				gen.writeFieldName("lock");
+				writeLock(lock);
+				gen.writeEndObject();
+			}
+			if (t.getLockOwnerName() != null) {
+				gen.writeStringField("lockOwnerName", t.getLockOwnerName());
+				gen.writeNumberField("lockOwnerId", t.getLockOwnerId());
+			}
+
+			StackTraceElement[] elements = t.getStackTrace();
+			gen.writeArrayFieldStart("stack");
+			for (StackTraceElement element : elements) {
+				gen.writeNumber(internFrame(element));
+			}
+			gen.writeEndArray();
+
+			MonitorInfo[] monitors = t.getLockedMonitors();
+			if (monitors.length > 0) {
+				gen.writeArrayFieldStart("lockedMonitors");
+				for (MonitorInfo monitor : monitors) {
+					writeLock(monitor);
+					gen.writeNumberField("depth", monitor.getLockedStackDepth());
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+
+			LockInfo[] locks = t.getLockedSynchronizers();
+			if (locks.length > 0) {
+				gen.writeArrayFieldStart("lockedSynchronizers");
+				for (LockInfo l : locks) {
+					writeLock(l);
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+			gen.writeEndObject();
+		}
+
+		void writeGroup(StackGroup group) throws IOException {
+			gen.writeStartObject();
+			gen.writeNumberField("count", group.threads.size());
+			gen.writeStringField("state", group.state.name());
+			if (group.lockClassName != null) {
+				gen.writeObjectFieldStart("lock");
+				gen.writeNumberField("class", internClass(group.lockClassName));
+				gen.writeEndObject();
+			}
+
+			gen.writeArrayFieldStart("threads");
+			for (ThreadInfo t : group.threads) {
+				gen.writeStartObject();
+				gen.writeStringField("name", t.getThreadName());
+				gen.writeNumberField("id", t.getThreadId());
+				if (t.getLockInfo() != null) {
+					gen.writeNumberField("lockIdentityHashCode", t.getLockInfo().getIdentityHashCode());
+				}
+				if (t.getLockOwnerName() != null) {
+					gen.writeStringField("lockOwnerName", t.getLockOwnerName());
+					gen.writeNumberField("lockOwnerId", t.getLockOwnerId());
+				}
+				gen.writeEndObject();
+			}
+			gen.writeEndArray();
+
+			gen.writeArrayFieldStart("stack");
+			for (StackTraceElement element : group.stack) {
+				gen.writeNumber(internFrame(element));
+			}
+			gen.writeEndArray();
+
+			MonitorInfo[] monitors = group.threads.get(0).getLockedMonitors();
+			if (monitors.length > 0) {
+				gen.writeArrayFieldStart("lockedMonitors");
+				for (MonitorInfo monitor : monitors) {
+					gen.writeStartObject();
+					gen.writeNumberField("class", internClass(monitor.getClassName()));
+					gen.writeNumberField("depth", monitor.getLockedStackDepth());
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+			gen.writeEndObject();
+		}
+
+		/**
+		 * Starts a lock object and writes its class and identity. The caller
+		 * ends the object.
+		 */
+		void writeLock(LockInfo lock) throws IOException {
+			gen.writeStartObject();
+			gen.writeNumberField("class", internClass(lock.getClassName()));
+			gen.writeNumberField("identityHashCode", lock.getIdentityHashCode());
+		}
+
+		void writeTables() throws IOException {
+			gen.writeArrayFieldStart("frames");
+			for (StackTraceElement element : frames) {
+				gen.writeStartArray();
+				gen.writeNumber(classIndex.get(element.getClassName()));
+				gen.writeString(element.getMethodName());
+				gen.writeString(element.getFileName());
+				gen.writeNumber(element.getLineNumber());
+				gen.writeEndArray();
+			}
+			gen.writeEndArray();
+
+			gen.writeArrayFieldStart("classes");
+			for (String className : classes) {
+				gen.writeString(className);
+			}
+			gen.writeEndArray();
+		}
+	}
 }
@@ -0,0 +1,126 @@
+package io.macgyver.agent;
+
+import java.io.IOException;
+import java.lang.management.LockInfo;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Remembers a hash of every thread's state and stack from the previous dump,
+ * so that the next dump only has to carry the threads that are new or have
+ * changed, plus the ids of threads that have gone away. Every
+ * <code>keyframeInterval</code> dumps a full dump is sent instead, so a
+ * receiver that missed a delta is never out of sync for long. A dump that
+ * a sender did not get makes the next dump a keyframe as well, see
+ * {@link #requestKeyframe()}.
+ */
+class ThreadDumpDeltaTracker {
+
+	final int keyframeInterval;
+
+	Map<Long, Long> previousHashes = new HashMap<>();
+	String previousDumpId;
+	long dumpCount = 0;
+	boolean keyframeRequested = false;
+
+	ThreadDumpDeltaTracker(int keyframeInterval) {
+		if (keyframeInterval < 1) {
+			throw new IllegalArgumentException("keyframeInterval must be > 0");
+		}
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	synchronized Delta next(ThreadInfo[] threads) {
+		Delta delta = new Delta();
+		delta.dumpId = UUID.randomUUID().toString();
+		if (keyframeRequested) {
+			// keyframes are counted from here
+			dumpCount = 0;
+			keyframeRequested = false;
+		}
+		delta.keyframe = previousDumpId == null || dumpCount % keyframeInterval == 0;
+		delta.baseDumpId = delta.keyframe ? null : previousDumpId;
+
+		Map<Long, Long> hashes = new HashMap<>(threads.length * 2);
+		List<ThreadInfo> changed = new ArrayList<>();
+		for (ThreadInfo t : threads) {
+			long hash = hash(t);
+			hashes.put(t.getThreadId(), hash);
+			Long previous = previousHashes.get(t.getThreadId());
+			if (delta.keyframe || previous == null || previous != hash) {
+				changed.add(t);
+			}
+		}
+		if (!delta.keyframe) {
+			for (Long id : previousHashes.keySet()) {
+				if (!hashes.containsKey(id)) {
+					delta.vanished.add(id);
+				}
+			}
+		}
+		delta.threads = changed.toArray(new ThreadInfo[changed.size()]);
+
+		previousHashes = hashes;
+		previousDumpId = delta.dumpId;
+		dumpCount++;
+		return delta;
+	}
+
+	/**
+	 * Makes the next dump a keyframe, since the receiver of a dump that was
+	 * not delivered can't apply the deltas based on it.
+	 */
+	synchronized void requestKeyframe() {
+		keyframeRequested = true;
+	}
+
+	static long hash(ThreadInfo t) {
+		long h = mix(t.getThreadName().hashCode());
+		h = h * 31 + t.getThreadState().ordinal();
+		h = h * 31 + (t.isSuspended() ? 1 : 0);
+		h = h * 31 + (t.isInNative() ? 1 : 0);
+		h = h * 31 + t.getLockOwnerId();
+		LockInfo lock = t.getLockInfo();
+		if (lock != null) {
+			h = h * 31 + lock.getIdentityHashCode();
+		}
+		for (StackTraceElement element : t.getStackTrace()) {
+			h = mix(h + element.hashCode());
+		}
+		return h;
+	}
+
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static class Delta {
+		String dumpId;
+		String baseDumpId;
+		boolean keyframe;
+		ThreadInfo[] threads;
+		List<Long> vanished = new ArrayList<>();
+
+		void writeHeaderFields(JsonGenerator gen) throws IOException {
+			gen.writeStringField("dumpId", dumpId);
+			gen.writeBooleanField("keyframe", keyframe);
+			if (baseDumpId != null) {
+				gen.writeStringField("baseDumpId", baseDumpId);
+				gen.writeArrayFieldStart("vanished");
+				for (Long id : vanished) {
+					gen.writeNumber(id);
+				}
+				gen.writeEndArray();
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package io.macgyver.agent;
+
+/**
+ * Thrown by a sender when the server does not know the content hash of a
+ * heartbeat check-in, so a full check-in has to be sent.
+ */
+public class UnknownContentHashException extends AgentException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnknownContentHashException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,40 @@
+package io.macgyver.agent.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * zlib-wrapped deflate, which is what HTTP means by <code>deflate</code>.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+	int level = Deflater.DEFAULT_COMPRESSION;
+
+	public DeflateCodec withLevel(int level) {
+		this.level = level;
+		return this;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public OutputStream encode(OutputStream out) throws IOException {
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(new UnclosableOutputStream(out), deflater, 8192) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,18 @@
+package io.macgyver.agent.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipCodec implements PayloadCodec {
+
+	@Override
+	public String getName() {
+		return "gzip";
+	}
+
+	@Override
+	public OutputStream encode(OutputStream out) throws IOException {
+		return new GZIPOutputStream(new UnclosableOutputStream(out), 8192);
+	}
+}
@@ -0,0 +1,21 @@
+package io.macgyver.agent.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses payloads on their way to the wire. The name is used as the HTTP
+ * <code>Content-Encoding</code> and as the <code>contentEncoding</code> of SNS
+ * envelopes.
+ */
+public interface PayloadCodec {
+
+	public String getName();
+
+	/**
+	 * Wraps a stream so that everything written to the returned stream is
+	 * encoded into <code>out</code>. Closing the returned stream finishes the
+	 * encoding but leaves <code>out</code> open.
+	 */
+	public OutputStream encode(OutputStream out) throws IOException;
+}
@@ -0,0 +1,26 @@
+package io.macgyver.agent.codec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Shields the wrapped stream from being closed (or flushed on close) by a codec
+ * stream on top of it. Flushing the target is left to whoever owns it.
+ */
+public class UnclosableOutputStream extends FilterOutputStream {
+
+	public UnclosableOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the target stays open
+	}
+}
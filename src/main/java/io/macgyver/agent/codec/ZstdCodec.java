@@ -0,0 +1,68 @@
+package io.macgyver.agent.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Zstandard compression, optionally with a pre-trained dictionary. Check-ins
+ * from a fleet share almost all of their keys and many of their values, so a
+ * dictionary trained on a sample of them lets even a single small payload
+ * compress well. The receiver needs the same dictionary to decode.
+ *
+ * Requires <code>com.github.luben:zstd-jni</code> on the classpath.
+ */
+public class ZstdCodec implements PayloadCodec {
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	int level = DEFAULT_LEVEL;
+	ZstdDictCompress dictionary;
+
+	public ZstdCodec withLevel(int level) {
+		if (dictionary != null) {
+			throw new IllegalStateException("set the level before the dictionary");
+		}
+		this.level = level;
+		return this;
+	}
+
+	public ZstdCodec withDictionary(byte[] dictionary) {
+		this.dictionary = new ZstdDictCompress(dictionary, level);
+		return this;
+	}
+
+	/**
+	 * Trains a dictionary from sample payloads, such as serialized check-ins.
+	 */
+	public static byte[] trainDictionary(List<byte[]> samples, int dictionarySize) {
+		long sampleBytes = 0;
+		for (byte[] sample : samples) {
+			sampleBytes += sample.length;
+		}
+		ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE, sampleBytes),
+				dictionarySize);
+		for (byte[] sample : samples) {
+			trainer.addSample(sample);
+		}
+		return trainer.trainSamples();
+	}
+
+	@Override
+	public String getName() {
+		return "zstd";
+	}
+
+	@Override
+	public OutputStream encode(OutputStream out) throws IOException {
+		ZstdOutputStream zstd = new ZstdOutputStream(new UnclosableOutputStream(out), level);
+		if (dictionary != null) {
+			zstd.setDict(dictionary);
+		}
+		return zstd;
+	}
+}
@@ -1,21 +1,19 @@
 package io.macgyver.agent.decorator;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.StringTokenizer;
-
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import io.macgyver.agent.MacGyverAgent;
+import io.macgyver.agent.HostIdentity;
+import io.macgyver.agent.HostIdentityCache;
 
 public class HostStatusDecorator implements StatusDecorator {
 
 	@Override
 	public void decorate(ObjectNode status) {
 
-		status.put("host",MacGyverAgent.getUnqualifiedHostname());
-		status.put("ip", MacGyverAgent.getHostIp());
-		status.put("dnsName",MacGyverAgent.getDnsName());
+		HostIdentity identity = HostIdentityCache.getDefault().get();
+		status.put("host", identity.getUnqualifiedHostname());
+		status.put("ip", identity.getHostIp());
+		status.put("dnsName", identity.getDnsName());
 	}
 
 }
@@ -0,0 +1,285 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Adds GC and memory figures as flat numeric attributes:
+ * <ul>
+ * <li><code>gc&lt;Collector&gt;Count</code> and
+ * <code>gc&lt;Collector&gt;TimeMillis</code>, with
+ * <code>...Delta</code> variants holding the change over the last
+ * interval</li>
+ * <li><code>heapUsed</code>, <code>heapCommitted</code>,
+ * <code>heapMax</code> and the same for <code>nonHeap</code></li>
+ * <li><code>pool&lt;Pool&gt;Used</code>, <code>...Committed</code>,
+ * <code>...Max</code> and <code>...PeakUsed</code> per memory pool</li>
+ * <li><code>allocationRateBytesPerSec</code> and
+ * <code>promotionRateBytesPerSec</code>, estimated from the movement of the
+ * eden and old generation pools over the last interval</li>
+ * </ul>
+ *
+ * Since decorators run for every message, not just check-ins, the deltas and
+ * rates are recomputed at most once per interval and repeated in between,
+ * so that they always cover at least a whole interval. Counts and usage are
+ * current in every message.
+ *
+ * The MXBeans and attribute names are resolved once and previous values are
+ * kept in primitive arrays, so beyond the <code>MemoryUsage</code> objects
+ * the MXBeans return, a call allocates nothing but the attribute values.
+ */
+public class JvmMemoryDecorator implements StatusDecorator {
+
+	final MemoryMXBean memoryMXBean;
+	final GarbageCollectorMXBean[] collectors;
+	final String[] collectorCountNames;
+	final String[] collectorTimeNames;
+	final String[] collectorCountDeltaNames;
+	final String[] collectorTimeDeltaNames;
+	final MemoryPoolMXBean[] pools;
+	final String[] poolUsedNames;
+	final String[] poolCommittedNames;
+	final String[] poolMaxNames;
+	final String[] poolPeakUsedNames;
+
+	final int edenPool;
+	final int oldPool;
+	final int youngCollector;
+	final int oldCollector;
+
+	final long intervalNanos;
+
+	final long[] previousCount;
+	final long[] previousTime;
+	long previousEdenUsed = -1;
+	long previousOldUsed = -1;
+	long previousNanos = 0;
+
+	// figures of the last completed interval
+	boolean hasDeltas = false;
+	final long[] countDelta;
+	final long[] timeDelta;
+	long allocationRate = -1;
+	long promotionRate = -1;
+
+	public JvmMemoryDecorator() {
+		this(30, TimeUnit.SECONDS);
+	}
+
+	public JvmMemoryDecorator(long interval, TimeUnit timeUnit) {
+		this(ManagementFactory.getMemoryMXBean(), ManagementFactory.getGarbageCollectorMXBeans(),
+				ManagementFactory.getMemoryPoolMXBeans(), interval, timeUnit);
+	}
+
+	public JvmMemoryDecorator(MemoryMXBean memoryMXBean, List<GarbageCollectorMXBean> collectors,
+			List<MemoryPoolMXBean> pools, long interval, TimeUnit timeUnit) {
+		this.memoryMXBean = memoryMXBean;
+		this.intervalNanos = timeUnit.toNanos(interval);
+		this.collectors = collectors.toArray(new GarbageCollectorMXBean[collectors.size()]);
+		this.collectorCountNames = new String[this.collectors.length];
+		this.collectorTimeNames = new String[this.collectors.length];
+		this.collectorCountDeltaNames = new String[this.collectors.length];
+		this.collectorTimeDeltaNames = new String[this.collectors.length];
+		int young = -1;
+		int old = -1;
+		for (int i = 0; i < this.collectors.length; i++) {
+			String name = this.collectors[i].getName();
+			String attr = "gc" + toAttributeName(name);
+			collectorCountNames[i] = attr + "Count";
+			collectorTimeNames[i] = attr + "TimeMillis";
+			collectorCountDeltaNames[i] = attr + "CountDelta";
+			collectorTimeDeltaNames[i] = attr + "TimeMillisDelta";
+			if (young < 0 && isYoungCollector(name)) {
+				young = i;
+			} else if (old < 0 && isOldCollector(name)) {
+				old = i;
+			}
+		}
+		this.youngCollector = young;
+		this.oldCollector = old;
+		this.previousCount = new long[this.collectors.length];
+		this.previousTime = new long[this.collectors.length];
+		this.countDelta = new long[this.collectors.length];
+		this.timeDelta = new long[this.collectors.length];
+
+		this.pools = pools.toArray(new MemoryPoolMXBean[pools.size()]);
+		this.poolUsedNames = new String[this.pools.length];
+		this.poolCommittedNames = new String[this.pools.length];
+		this.poolMaxNames = new String[this.pools.length];
+		this.poolPeakUsedNames = new String[this.pools.length];
+		int eden = -1;
+		int tenured = -1;
+		for (int i = 0; i < this.pools.length; i++) {
+			String name = this.pools[i].getName();
+			String attr = "pool" + toAttributeName(name);
+			poolUsedNames[i] = attr + "Used";
+			poolCommittedNames[i] = attr + "Committed";
+			poolMaxNames[i] = attr + "Max";
+			poolPeakUsedNames[i] = attr + "PeakUsed";
+			if (this.pools[i].getType() == MemoryType.HEAP) {
+				if (name.contains("Eden")) {
+					eden = i;
+				} else if (name.contains("Old") || name.contains("Tenured")) {
+					tenured = i;
+				}
+			}
+		}
+		this.edenPool = eden;
+		this.oldPool = tenured;
+	}
+
+	@Override
+	public synchronized void decorate(ObjectNode status) {
+		long nanos = System.nanoTime();
+		boolean first = previousNanos == 0;
+		boolean advance = first || nanos - previousNanos >= intervalNanos;
+
+		long youngCountDelta = 0;
+		long oldCountDelta = 0;
+		for (int i = 0; i < collectors.length; i++) {
+			long count = collectors[i].getCollectionCount();
+			long time = collectors[i].getCollectionTime();
+			status.put(collectorCountNames[i], count);
+			status.put(collectorTimeNames[i], time);
+			if (advance) {
+				countDelta[i] = count - previousCount[i];
+				timeDelta[i] = time - previousTime[i];
+				if (i == youngCollector) {
+					youngCountDelta = countDelta[i];
+				} else if (i == oldCollector) {
+					oldCountDelta = countDelta[i];
+				}
+				previousCount[i] = count;
+				previousTime[i] = time;
+			}
+		}
+
+		MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+		status.put("heapUsed", heap.getUsed());
+		status.put("heapCommitted", heap.getCommitted());
+		status.put("heapMax", heap.getMax());
+		MemoryUsage nonHeap = memoryMXBean.getNonHeapMemoryUsage();
+		status.put("nonHeapUsed", nonHeap.getUsed());
+		status.put("nonHeapCommitted", nonHeap.getCommitted());
+		status.put("nonHeapMax", nonHeap.getMax());
+
+		long edenUsed = -1;
+		long oldUsed = -1;
+		for (int i = 0; i < pools.length; i++) {
+			MemoryUsage usage = pools[i].getUsage();
+			if (usage == null) {
+				// pool is no longer valid
+				continue;
+			}
+			status.put(poolUsedNames[i], usage.getUsed());
+			status.put(poolCommittedNames[i], usage.getCommitted());
+			status.put(poolMaxNames[i], usage.getMax());
+			MemoryUsage peak = pools[i].getPeakUsage();
+			if (peak != null) {
+				status.put(poolPeakUsedNames[i], peak.getUsed());
+			}
+			if (i == edenPool) {
+				edenUsed = usage.getUsed();
+			} else if (i == oldPool) {
+				oldUsed = usage.getUsed();
+			}
+		}
+
+		if (advance) {
+			if (!first) {
+				double seconds = (nanos - previousNanos) / 1e9;
+				long allocated = estimateAllocated(edenUsed, youngCountDelta);
+				allocationRate = allocated >= 0 && seconds > 0 ? (long) (allocated / seconds) : -1;
+				// old gen only grows by promotion until an old collection runs
+				promotionRate = oldUsed >= 0 && previousOldUsed >= 0 && oldCountDelta == 0 && seconds > 0
+						? (long) (Math.max(0, oldUsed - previousOldUsed) / seconds) : -1;
+				hasDeltas = true;
+			}
+			previousEdenUsed = edenUsed;
+			previousOldUsed = oldUsed;
+			previousNanos = nanos;
+		}
+
+		if (hasDeltas) {
+			for (int i = 0; i < collectors.length; i++) {
+				status.put(collectorCountDeltaNames[i], countDelta[i]);
+				status.put(collectorTimeDeltaNames[i], timeDelta[i]);
+			}
+			if (allocationRate >= 0) {
+				status.put("allocationRateBytesPerSec", allocationRate);
+			}
+			if (promotionRate >= 0) {
+				status.put("promotionRateBytesPerSec", promotionRate);
+			}
+		}
+	}
+
+	/**
+	 * Bytes allocated in eden since the start of the interval. If young collections ran
+	 * in between, each is assumed to have found eden as full as the last one
+	 * did.
+	 */
+	long estimateAllocated(long edenUsed, long youngCollections) {
+		if (edenUsed < 0 || previousEdenUsed < 0) {
+			return -1;
+		}
+		if (youngCollections == 0) {
+			return Math.max(0, edenUsed - previousEdenUsed);
+		}
+		if (youngCollector < 0 || !(collectors[youngCollector] instanceof com.sun.management.GarbageCollectorMXBean)) {
+			return -1;
+		}
+		com.sun.management.GcInfo gc = ((com.sun.management.GarbageCollectorMXBean) collectors[youngCollector])
+				.getLastGcInfo();
+		if (gc == null) {
+			return -1;
+		}
+		String edenName = pools[edenPool].getName();
+		Map<String, MemoryUsage> before = gc.getMemoryUsageBeforeGc();
+		Map<String, MemoryUsage> after = gc.getMemoryUsageAfterGc();
+		if (!before.containsKey(edenName) || !after.containsKey(edenName)) {
+			return -1;
+		}
+		long full = before.get(edenName).getUsed();
+		long left = after.get(edenName).getUsed();
+		return Math.max(0, youngCollections * full - previousEdenUsed + edenUsed - left);
+	}
+
+	static boolean isYoungCollector(String name) {
+		return name.contains("Young") || name.contains("Scavenge") || name.contains("ParNew")
+				|| name.equals("Copy");
+	}
+
+	static boolean isOldCollector(String name) {
+		return name.contains("Old") || name.contains("MarkSweep");
+	}
+
+	/**
+	 * Turns an MXBean name like <code>PS Eden Space</code> or
+	 * <code>CodeHeap 'non-nmethods'</code> into <code>PSEdenSpace</code> or
+	 * <code>CodeHeapNonNmethods</code>.
+	 */
+	static String toAttributeName(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		boolean upper = true;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < 128 && Character.isLetterOrDigit(c)) {
+				sb.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			} else {
+				upper = true;
+			}
+		}
+		return sb.toString();
+	}
+}
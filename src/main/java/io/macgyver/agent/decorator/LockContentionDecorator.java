@@ -0,0 +1,206 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reports the most contended locks since the previous report. Thread
+ * contention monitoring is turned on when the decorator is created, and the
+ * blocked and waited counts and times of every thread are compared with those
+ * of the previous report. The difference is attributed to the lock the thread
+ * is waiting on (or was last seen waiting on), grouped by lock class and
+ * owner.
+ *
+ * Blocked time (waiting to enter a monitor) always counts as contention.
+ * Waited time only counts when the lock has an owner, i.e. the thread is
+ * waiting to acquire a synchronizer someone else holds, so that idle threads
+ * parked on a queue don't drown out real contention.
+ *
+ * Since decorators run for every message, the figures are recomputed at most
+ * once per interval and repeated in between. Attributes are flat:
+ * <code>contendedLock1Class</code>, <code>contendedLock1Owner</code>,
+ * <code>contendedLock1BlockedCount</code>,
+ * <code>contendedLock1BlockedMillis</code>,
+ * <code>contendedLock1WaitedCount</code>,
+ * <code>contendedLock1WaitedMillis</code> and
+ * <code>contendedLock1TopThreads</code> (<code>name=millis</code>, comma
+ * separated), then <code>contendedLock2...</code> and so on.
+ */
+public class LockContentionDecorator implements StatusDecorator {
+
+	static Logger logger = LoggerFactory.getLogger(LockContentionDecorator.class);
+
+	static final int TOP_THREADS = 3;
+
+	final ThreadMXBean threadMXBean;
+	final int topN;
+	final long intervalMillis;
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	Map<Long, ThreadCounters> previous;
+	long lastReport = 0;
+	ObjectNode report;
+
+	public LockContentionDecorator() {
+		this(ManagementFactory.getThreadMXBean(), 5, 30, TimeUnit.SECONDS);
+	}
+
+	public LockContentionDecorator(ThreadMXBean threadMXBean, int topN, long interval, TimeUnit timeUnit) {
+		this.threadMXBean = threadMXBean;
+		this.topN = topN;
+		this.intervalMillis = timeUnit.toMillis(interval);
+		if (threadMXBean.isThreadContentionMonitoringSupported()) {
+			threadMXBean.setThreadContentionMonitoringEnabled(true);
+		} else {
+			logger.warn("thread contention monitoring is not supported -- only counts will be reported");
+		}
+	}
+
+	@Override
+	public synchronized void decorate(ObjectNode status) {
+		long now = System.currentTimeMillis();
+		if (report == null || now - lastReport >= intervalMillis) {
+			report = computeReport();
+			lastReport = now;
+		}
+		status.setAll(report);
+	}
+
+	ObjectNode computeReport() {
+		ThreadInfo[] threads = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+		Map<Long, ThreadCounters> current = new HashMap<>();
+		Map<String, LockContention> locks = new HashMap<>();
+		for (ThreadInfo t : threads) {
+			if (t == null) {
+				continue;
+			}
+			ThreadCounters before = previous == null ? null : previous.get(t.getThreadId());
+			ThreadCounters after = new ThreadCounters(t, before);
+			current.put(t.getThreadId(), after);
+			if (before == null || after.lockClassName == null) {
+				continue;
+			}
+			long blockedCount = after.blockedCount - before.blockedCount;
+			long blockedMillis = Math.max(0, after.blockedMillis - before.blockedMillis);
+			long waitedCount = 0;
+			long waitedMillis = 0;
+			if (after.lockOwnerName != null) {
+				waitedCount = after.waitedCount - before.waitedCount;
+				waitedMillis = Math.max(0, after.waitedMillis - before.waitedMillis);
+			}
+			if (blockedCount == 0 && waitedCount == 0) {
+				continue;
+			}
+			String key = after.lockClassName + '\u0000' + after.lockOwnerName;
+			LockContention lock = locks.get(key);
+			if (lock == null) {
+				lock = new LockContention(after.lockClassName, after.lockOwnerName);
+				locks.put(key, lock);
+			}
+			lock.add(t.getThreadName(), blockedCount, blockedMillis, waitedCount, waitedMillis);
+		}
+		previous = current;
+
+		List<LockContention> sorted = new ArrayList<>(locks.values());
+		sorted.sort((a, b) -> {
+			int c = Long.compare(b.blockedMillis + b.waitedMillis, a.blockedMillis + a.waitedMillis);
+			return c != 0 ? c : Long.compare(b.blockedCount + b.waitedCount, a.blockedCount + a.waitedCount);
+		});
+
+		ObjectNode n = mapper.createObjectNode();
+		for (int i = 0; i < Math.min(topN, sorted.size()); i++) {
+			LockContention lock = sorted.get(i);
+			String prefix = "contendedLock" + (i + 1);
+			n.put(prefix + "Class", lock.className);
+			if (lock.ownerName != null) {
+				n.put(prefix + "Owner", lock.ownerName);
+			}
+			n.put(prefix + "BlockedCount", lock.blockedCount);
+			n.put(prefix + "BlockedMillis", lock.blockedMillis);
+			n.put(prefix + "WaitedCount", lock.waitedCount);
+			n.put(prefix + "WaitedMillis", lock.waitedMillis);
+			n.put(prefix + "TopThreads", lock.topThreads());
+		}
+		return n;
+	}
+
+	static class ThreadCounters {
+
+		final long blockedCount;
+		final long blockedMillis;
+		final long waitedCount;
+		final long waitedMillis;
+		final String lockClassName;
+		final String lockOwnerName;
+
+		ThreadCounters(ThreadInfo t, ThreadCounters before) {
+			this.blockedCount = t.getBlockedCount();
+			this.blockedMillis = t.getBlockedTime();
+			this.waitedCount = t.getWaitedCount();
+			this.waitedMillis = t.getWaitedTime();
+			LockInfo lock = t.getLockInfo();
+			if (lock != null) {
+				this.lockClassName = lock.getClassName();
+				this.lockOwnerName = t.getLockOwnerName();
+			} else if (before != null) {
+				// not waiting right now; blame the lock it was last seen on
+				this.lockClassName = before.lockClassName;
+				this.lockOwnerName = before.lockOwnerName;
+			} else {
+				this.lockClassName = null;
+				this.lockOwnerName = null;
+			}
+		}
+	}
+
+	static class LockContention {
+
+		final String className;
+		final String ownerName;
+		long blockedCount;
+		long blockedMillis;
+		long waitedCount;
+		long waitedMillis;
+		Map<String, long[]> threadMillis = new HashMap<>();
+
+		LockContention(String className, String ownerName) {
+			this.className = className;
+			this.ownerName = ownerName;
+		}
+
+		void add(String threadName, long blockedCount, long blockedMillis, long waitedCount, long waitedMillis) {
+			this.blockedCount += blockedCount;
+			this.blockedMillis += blockedMillis;
+			this.waitedCount += waitedCount;
+			this.waitedMillis += waitedMillis;
+			threadMillis.computeIfAbsent(threadName, k -> new long[1])[0] += blockedMillis + waitedMillis;
+		}
+
+		String topThreads() {
+			List<Map.Entry<String, long[]>> entries = new ArrayList<>(threadMillis.entrySet());
+			entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < Math.min(TOP_THREADS, entries.size()); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(entries.get(i).getKey()).append('=').append(entries.get(i).getValue()[0]);
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -20,7 +20,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.macgyver.agent.AppMetadataProvider;
 import io.macgyver.agent.MacGyverAgent;
 
-public class StandardDiscoveryDecorator implements StatusDecorator {
+public class StandardDiscoveryDecorator implements StaticStatusDecorator {
+
+	static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.of("UTC"));
 
 	MacGyverAgent agent;
 
@@ -50,7 +52,7 @@ public class StandardDiscoveryDecorator implements StatusDecorator {
 	}
 
 	@Override
-	public void decorate(ObjectNode n) {
+	public void decorateStatic(ObjectNode n) {
 
 		if (agent != null) {
 			Optional<AppMetadataProvider> mdp = agent.getAppMetadataProvider();
@@ -79,7 +81,6 @@ public class StandardDiscoveryDecorator implements StatusDecorator {
 		}
 
 		safeSet(n, "startTime", x -> formatDate(agent.getStartTime()));
-		safeSet(n, "timestamp", x -> formatDate(new Date()));
 
 		n.put("osName", System.getProperty("os.name"));
 		n.put("osVersion", System.getProperty("os.version"));
@@ -89,12 +90,17 @@ public class StandardDiscoveryDecorator implements StatusDecorator {
 
 	}
 
+	@Override
+	public void decorateDynamic(ObjectNode n) {
+		safeSet(n, "timestamp", x -> formatDate(new Date()));
+	}
+
 	protected String formatDate(Date d) {
 		if (d == null) {
 			return null;
 		}
 
-		return DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.of("UTC")).format(d.toInstant());
+		return DATE_FORMAT.format(d.toInstant());
 
 	}
 }
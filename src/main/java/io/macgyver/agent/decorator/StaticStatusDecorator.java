@@ -0,0 +1,28 @@
+package io.macgyver.agent.decorator;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A decorator whose attributes are mostly fixed for the life of the agent.
+ * The agent calls {@link #decorateStatic(ObjectNode)} once, validates and
+ * caches the result, and merges it into every message, only calling
+ * {@link #decorateDynamic(ObjectNode)} per message. The cache is rebuilt when
+ * the agent's decorators or metadata provider change.
+ *
+ * Implementations that override {@link #decorate(ObjectNode)} are treated
+ * like any other decorator: only <code>decorate()</code> is called, for every
+ * message.
+ */
+public interface StaticStatusDecorator extends StatusDecorator {
+
+	public void decorateStatic(ObjectNode status);
+
+	public default void decorateDynamic(ObjectNode status) {
+	}
+
+	@Override
+	public default void decorate(ObjectNode status) {
+		decorateStatic(status);
+		decorateDynamic(status);
+	}
+}
@@ -0,0 +1,190 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reports the threads that used the most CPU and allocated the most memory
+ * since the previous report, like <code>top -H</code>, plus process totals.
+ *
+ * CPU times and allocated bytes of all threads are read with the bulk
+ * methods of HotSpot's <code>com.sun.management.ThreadMXBean</code> into
+ * primitive arrays, so the cost stays low with thousands of threads; names
+ * are only looked up for the threads that make the top N. On JVMs without
+ * those methods nothing is reported.
+ *
+ * Since decorators run for every message, the figures are recomputed at most
+ * once per interval and repeated in between. Attributes are flat:
+ * <code>cpuTopThread1Name</code>, <code>cpuTopThread1Id</code>,
+ * <code>cpuTopThread1CpuMillis</code>,
+ * <code>cpuTopThread1AllocatedBytes</code>, ... for the top CPU users,
+ * <code>allocTopThread1...</code> for the top allocators, and
+ * <code>threadCount</code>, <code>threadCpuMillis</code>,
+ * <code>threadAllocatedBytes</code>, <code>processCpuMillis</code> and
+ * <code>threadStatsIntervalMillis</code> for the whole process.
+ */
+public class ThreadCpuDecorator implements StatusDecorator {
+
+	static Logger logger = LoggerFactory.getLogger(ThreadCpuDecorator.class);
+
+	final com.sun.management.ThreadMXBean threadMXBean;
+	final OperatingSystemMXBean osMXBean;
+	final int topN;
+	final long intervalMillis;
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	// sorted by id
+	long[] previousIds;
+	long[] previousCpu;
+	long[] previousAllocated;
+	long previousProcessCpu;
+	long previousNanos;
+
+	long lastReport = 0;
+	ObjectNode report;
+
+	public ThreadCpuDecorator() {
+		this(ManagementFactory.getThreadMXBean(), 5, 30, TimeUnit.SECONDS);
+	}
+
+	public ThreadCpuDecorator(ThreadMXBean threadMXBean, int topN, long interval, TimeUnit timeUnit) {
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			this.threadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+			if (threadMXBean.isThreadCpuTimeSupported()) {
+				threadMXBean.setThreadCpuTimeEnabled(true);
+			}
+			if (this.threadMXBean.isThreadAllocatedMemorySupported()) {
+				this.threadMXBean.setThreadAllocatedMemoryEnabled(true);
+			}
+		} else {
+			logger.warn("per-thread cpu and allocation statistics are not supported by this JVM");
+			this.threadMXBean = null;
+		}
+		this.osMXBean = ManagementFactory.getOperatingSystemMXBean();
+		this.topN = topN;
+		this.intervalMillis = timeUnit.toMillis(interval);
+	}
+
+	@Override
+	public synchronized void decorate(ObjectNode status) {
+		if (threadMXBean == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (report == null || now - lastReport >= intervalMillis) {
+			report = computeReport();
+			lastReport = now;
+		}
+		status.setAll(report);
+	}
+
+	ObjectNode computeReport() {
+		long nanos = System.nanoTime();
+		long[] ids = threadMXBean.getAllThreadIds();
+		Arrays.sort(ids);
+		long[] cpu = threadMXBean.getThreadCpuTime(ids);
+		long[] allocated = threadMXBean.getThreadAllocatedBytes(ids);
+		long processCpu = getProcessCpuTime();
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("threadCount", ids.length);
+		if (previousIds != null) {
+			long[] cpuDelta = new long[ids.length];
+			long[] allocatedDelta = new long[ids.length];
+			long cpuTotal = 0;
+			long allocatedTotal = 0;
+			for (int i = 0; i < ids.length; i++) {
+				// threads that started since the previous report count from zero
+				int p = Arrays.binarySearch(previousIds, ids[i]);
+				cpuDelta[i] = delta(cpu[i], p < 0 ? 0 : previousCpu[p]);
+				allocatedDelta[i] = delta(allocated[i], p < 0 ? 0 : previousAllocated[p]);
+				cpuTotal += cpuDelta[i];
+				allocatedTotal += allocatedDelta[i];
+			}
+			n.put("threadStatsIntervalMillis", TimeUnit.NANOSECONDS.toMillis(nanos - previousNanos));
+			n.put("threadCpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuTotal));
+			n.put("threadAllocatedBytes", allocatedTotal);
+			if (processCpu >= 0 && previousProcessCpu >= 0) {
+				n.put("processCpuMillis", TimeUnit.NANOSECONDS.toMillis(processCpu - previousProcessCpu));
+			}
+			writeTop(n, "cpuTopThread", ids, cpuDelta, cpuDelta, allocatedDelta);
+			writeTop(n, "allocTopThread", ids, allocatedDelta, cpuDelta, allocatedDelta);
+		}
+
+		previousIds = ids;
+		previousCpu = cpu;
+		previousAllocated = allocated;
+		previousProcessCpu = processCpu;
+		previousNanos = nanos;
+		return n;
+	}
+
+	void writeTop(ObjectNode n, String prefix, long[] ids, long[] rankBy, long[] cpuDelta, long[] allocatedDelta) {
+		int[] top = top(rankBy, topN);
+		long[] topIds = new long[top.length];
+		for (int i = 0; i < top.length; i++) {
+			topIds[i] = ids[top[i]];
+		}
+		ThreadInfo[] infos = threadMXBean.getThreadInfo(topIds, 0);
+		int rank = 1;
+		for (int i = 0; i < top.length; i++) {
+			if (infos[i] == null) {
+				continue;
+			}
+			String p = prefix + rank++;
+			n.put(p + "Name", infos[i].getThreadName());
+			n.put(p + "Id", topIds[i]);
+			n.put(p + "CpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuDelta[top[i]]));
+			n.put(p + "AllocatedBytes", allocatedDelta[top[i]]);
+		}
+	}
+
+	/**
+	 * Indexes of the (at most) n largest positive values, largest first.
+	 */
+	static int[] top(long[] values, int n) {
+		int[] top = new int[Math.max(0, Math.min(n, values.length))];
+		if (top.length == 0) {
+			return top;
+		}
+		int size = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] <= 0 || (size == top.length && values[i] <= values[top[size - 1]])) {
+				continue;
+			}
+			int pos = size == top.length ? size - 1 : size++;
+			while (pos > 0 && values[top[pos - 1]] < values[i]) {
+				top[pos] = top[pos - 1];
+				pos--;
+			}
+			top[pos] = i;
+		}
+		return Arrays.copyOf(top, size);
+	}
+
+	static long delta(long current, long previous) {
+		if (current < 0) {
+			// thread has terminated or the figure is unavailable
+			return 0;
+		}
+		return Math.max(0, current - Math.max(0, previous));
+	}
+
+	long getProcessCpuTime() {
+		if (osMXBean instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) osMXBean).getProcessCpuTime();
+		}
+		return -1;
+	}
+}
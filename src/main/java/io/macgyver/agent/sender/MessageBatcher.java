@@ -0,0 +1,244 @@
+package io.macgyver.agent.sender;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.macgyver.agent.MacGyverAgent.BatchListener;
+
+/**
+ * Collects serialized messages and hands them to a flush callback as a single
+ * batch once a count, size or linger-time limit is reached. The size of a batch
+ * is that of the JSON array it would be sent as, and never exceeds
+ * <code>maxBytes</code> unless it holds a single message that is larger than
+ * that on its own.
+ *
+ * Each message may carry a tag, e.g. the object it was serialized from. The
+ * {@link BatchListener}, if any, is told the tags of every batch that was
+ * sent or failed; without one, failed batches are logged and counted.
+ *
+ * Each batcher has its own linger timer thread, so a sender whose flushes
+ * hang only holds up its own batches. The thread is started on demand and
+ * stopped by {@link #close()}.
+ */
+public class MessageBatcher implements Flushable, Closeable {
+
+	static Logger logger = LoggerFactory.getLogger(MessageBatcher.class);
+
+	ScheduledExecutorService lingerTimer;
+
+	final int maxCount;
+	final long maxBytes;
+	final long lingerMillis;
+	final Consumer<List<byte[]>> flusher;
+
+	volatile BatchListener listener;
+	final AtomicLong droppedBatchCount = new AtomicLong();
+
+	List<byte[]> batch = new ArrayList<>();
+	List<Object> batchTags = new ArrayList<>();
+	long batchBytes = 0;
+	long generation = 0;
+
+	public MessageBatcher(int maxCount, long maxBytes, long lingerMillis, Consumer<List<byte[]>> flusher) {
+		if (maxCount < 1) {
+			throw new IllegalArgumentException("maxCount must be > 0");
+		}
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be > 0");
+		}
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.lingerMillis = lingerMillis;
+		this.flusher = flusher;
+	}
+
+	public void setListener(BatchListener listener) {
+		this.listener = listener;
+	}
+
+	public void add(byte[] message) {
+		add(message, null);
+	}
+
+	/**
+	 * Adds a message to the current batch. If the batch becomes full it is
+	 * flushed on the calling thread; otherwise it is flushed by a timer thread
+	 * once the linger time has passed.
+	 */
+	public void add(byte[] message, Object tag) {
+		Batch full = null;
+		Batch overflow = null;
+		synchronized (this) {
+			if (!batch.isEmpty() && arraySize(batchBytes + message.length + 1) > maxBytes) {
+				overflow = take();
+			}
+			batch.add(message);
+			batchTags.add(tag);
+			batchBytes += message.length + 1;
+			if (batch.size() >= maxCount || arraySize(batchBytes) >= maxBytes) {
+				full = take();
+			} else if (batch.size() == 1) {
+				scheduleLinger(generation);
+			}
+		}
+		if (overflow != null) {
+			flush(overflow);
+		}
+		if (full != null) {
+			flush(full);
+		}
+	}
+
+	/**
+	 * Flushes whatever is in the current batch.
+	 */
+	@Override
+	public void flush() {
+		Batch pending;
+		synchronized (this) {
+			pending = take();
+		}
+		flush(pending);
+	}
+
+	/**
+	 * Stops the linger timer and flushes whatever is in the current batch. A
+	 * batcher that is used again after this starts a new timer.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (lingerTimer != null) {
+				lingerTimer.shutdownNow();
+				lingerTimer = null;
+			}
+		}
+		flush();
+	}
+
+	public synchronized int getPendingCount() {
+		return batch.size();
+	}
+
+	/**
+	 * Batches that failed while there was no listener to hand them to.
+	 */
+	public long getDroppedBatchCount() {
+		return droppedBatchCount.get();
+	}
+
+	/**
+	 * Size of a JSON array given the sum of (length + 1) over its elements:
+	 * one byte per separator plus the two brackets.
+	 */
+	static long arraySize(long elementBytes) {
+		return elementBytes + 1;
+	}
+
+	/**
+	 * Joins serialized JSON values into a single JSON array.
+	 */
+	public static byte[] toJsonArray(List<byte[]> messages) {
+		int size = 1;
+		for (byte[] message : messages) {
+			size += message.length + 1;
+		}
+		byte[] array = new byte[Math.max(size, 2)];
+		int pos = 0;
+		array[pos++] = '[';
+		for (int i = 0; i < messages.size(); i++) {
+			byte[] message = messages.get(i);
+			if (i > 0) {
+				array[pos++] = ',';
+			}
+			System.arraycopy(message, 0, array, pos, message.length);
+			pos += message.length;
+		}
+		array[pos] = ']';
+		return array;
+	}
+
+	private Batch take() {
+		Batch taken = new Batch(batch, batchTags);
+		batch = new ArrayList<>();
+		batchTags = new ArrayList<>();
+		batchBytes = 0;
+		generation++;
+		return taken;
+	}
+
+	private void flush(Batch pending) {
+		if (pending.messages.isEmpty()) {
+			return;
+		}
+		BatchListener l = listener;
+		try {
+			flusher.accept(pending.messages);
+		} catch (RuntimeException e) {
+			if (l != null) {
+				try {
+					l.batchFailed(pending.tags, e);
+					return;
+				} catch (RuntimeException le) {
+					logger.warn("problem handling failed batch", le);
+				}
+			}
+			droppedBatchCount.incrementAndGet();
+			logger.warn("problem flushing batch of {} message(s): {}", pending.messages.size(), e.toString());
+			return;
+		}
+		if (l != null) {
+			try {
+				l.batchSent(pending.tags);
+			} catch (RuntimeException e) {
+				logger.warn("problem handling sent batch", e);
+			}
+		}
+	}
+
+	private void scheduleLinger(long expectedGeneration) {
+		getLingerTimer().schedule(() -> {
+			Batch pending = null;
+			synchronized (this) {
+				if (generation == expectedGeneration) {
+					pending = take();
+				}
+			}
+			if (pending != null) {
+				flush(pending);
+			}
+		}, lingerMillis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized ScheduledExecutorService getLingerTimer() {
+		if (lingerTimer == null) {
+			lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "macgyver-agent-batch-linger");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return lingerTimer;
+	}
+
+	static class Batch {
+
+		final List<byte[]> messages;
+		final List<Object> tags;
+
+		Batch(List<byte[]> messages, List<Object> tags) {
+			this.messages = messages;
+			this.tags = tags;
+		}
+	}
+}
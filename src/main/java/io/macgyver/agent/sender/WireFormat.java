@@ -0,0 +1,71 @@
+package io.macgyver.agent.sender;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * How senders serialize message data. SMILE and CBOR are Jackson's binary
+ * encodings of the same data model as JSON; they are cheaper to produce and
+ * smaller, since nothing is escaped and numbers are written as binary. They
+ * need <code>jackson-dataformat-smile</code> or
+ * <code>jackson-dataformat-cbor</code> on the classpath, which are only
+ * loaded when the format is used.
+ */
+public enum WireFormat {
+
+	JSON("application/json; charset=utf-8"), SMILE("application/x-jackson-smile"), CBOR("application/cbor");
+
+	final String contentType;
+	volatile ObjectMapper mapper;
+
+	WireFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * A mapper for this format whose generators neither close nor flush the
+	 * stream they write to, so they can write into a stream owned by the
+	 * caller.
+	 */
+	public ObjectMapper getObjectMapper() {
+		ObjectMapper m = mapper;
+		if (m == null) {
+			m = new ObjectMapper(createFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+					.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM));
+			mapper = m;
+		}
+		return m;
+	}
+
+	JsonFactory createFactory() {
+		switch (this) {
+		case SMILE:
+			return Smile.createFactory();
+		case CBOR:
+			return Cbor.createFactory();
+		default:
+			return new JsonFactory();
+		}
+	}
+
+	// the binary factories are only referenced from these holders, so that
+	// verifying WireFormat doesn't need them on the classpath
+	static class Smile {
+		static JsonFactory createFactory() {
+			return new SmileFactory();
+		}
+	}
+
+	static class Cbor {
+		static JsonFactory createFactory() {
+			return new CBORFactory();
+		}
+	}
+}
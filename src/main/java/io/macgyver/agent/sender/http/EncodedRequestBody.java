@@ -0,0 +1,44 @@
+package io.macgyver.agent.sender.http;
+
+import java.io.IOException;
+
+import io.macgyver.agent.codec.PayloadCodec;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Runs another request body through a {@link PayloadCodec} as it is written.
+ */
+class EncodedRequestBody extends RequestBody {
+
+	final RequestBody delegate;
+	final PayloadCodec codec;
+
+	EncodedRequestBody(RequestBody delegate, PayloadCodec codec) {
+		this.delegate = delegate;
+		this.codec = codec;
+	}
+
+	String getContentEncoding() {
+		return codec.getName();
+	}
+
+	@Override
+	public MediaType contentType() {
+		return delegate.contentType();
+	}
+
+	@Override
+	public long contentLength() {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		BufferedSink encoded = Okio.buffer(Okio.sink(codec.encode(sink.outputStream())));
+		delegate.writeTo(encoded);
+		encoded.close();
+	}
+}
@@ -1,25 +1,49 @@
 package io.macgyver.agent.sender.http;
 
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.macgyver.agent.AgentException;
+import io.macgyver.agent.AppEvent;
+import io.macgyver.agent.BackpressureException;
+import io.macgyver.agent.EncodedThreadDump;
+import io.macgyver.agent.MacGyverAgent;
+import io.macgyver.agent.MacGyverAgent.BatchListener;
+import io.macgyver.agent.MacGyverAgent.MessageType;
+import io.macgyver.agent.UnknownContentHashException;
+import io.macgyver.agent.codec.PayloadCodec;
+import io.macgyver.agent.sender.MessageBatcher;
+import io.macgyver.agent.sender.WireFormat;
 import okhttp3.Credentials;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
 
-public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
+public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.StreamingSender,
+		io.macgyver.agent.MacGyverAgent.BufferingSender, Flushable, Closeable {
 
 	Logger logger = LoggerFactory.getLogger(HttpAgentSender.class);
 
@@ -33,15 +57,34 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 	public static final String DEFAULT_APP_EVENT_PATH = "/api/cmdb/app-event";
 	public static final String DEFAULT_THREAD_DUMP_PATH = "/api/monitor/thread-dump";
 	public static final String DEFAULT_APP_CONFIG_DUMP_PATH = "/api/monitor/app-config-dump";
+	public static final String DEFAULT_APP_EVENT_BATCH_PATH = "/api/cmdb/app-event/batch";
+	public static final String DEFAULT_STACK_PROFILE_PATH = "/api/monitor/stack-profile";
 
 	String baseUrl;
 	String checkInPath = DEFAULT_CHECK_IN_PATH;
 	String appEventPath = DEFAULT_APP_EVENT_PATH;
 	String threadDumpPath = DEFAULT_THREAD_DUMP_PATH;
 	String appConfigDumpPath = DEFAULT_APP_CONFIG_DUMP_PATH;
+	String appEventBatchPath = DEFAULT_APP_EVENT_BATCH_PATH;
+	String stackProfilePath = DEFAULT_STACK_PROFILE_PATH;
 	String username = null;
 	String password = null;
 
+	ObjectMapper mapper = new ObjectMapper();
+
+	public static final long DEFAULT_CODEC_MIN_BYTES = 1024;
+
+	PayloadCodec codec;
+	long codecMinBytes = DEFAULT_CODEC_MIN_BYTES;
+	volatile boolean codecRejected = false;
+
+	MessageBatcher appEventBatcher;
+	volatile boolean appEventBatchRejected = false;
+	volatile BatchListener batchListener;
+
+	WireFormat wireFormat = WireFormat.JSON;
+	volatile boolean wireFormatRejected = false;
+
 	public HttpAgentSender withBaseUrl(String url) {
 		this.baseUrl = url;
 		while (baseUrl.endsWith("/")) {
@@ -50,6 +93,11 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 		return this;
 	}
 
+	@Override
+	public String getSenderId() {
+		return "http:" + baseUrl;
+	}
+
 	public HttpAgentSender withOkHttpClient(OkHttpClient client) {
 		this.okhttp = client;
 		return this;
@@ -76,12 +124,152 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 		return baseUrl + checkInPath;
 	}
 
+	public String getStackProfileUrl() {
+		return baseUrl + stackProfilePath;
+	}
+
 	public HttpAgentSender withCredentials(String username, String password) {
 
 		return this;
 	}
 
+	/**
+	 * Buffer app events and deliver them as a single JSON array POST to the
+	 * batch path once <code>maxCount</code> events or <code>maxBytes</code> of
+	 * JSON are buffered, or the oldest buffered event is <code>linger</code>
+	 * old. If the server rejects the batch path, events are sent one at a time.
+	 * When the sender is added to an agent, the events of a batch that fails
+	 * are retried or spooled by the agent.
+	 */
+	public HttpAgentSender withAppEventBatching(int maxCount, long maxBytes, long linger, TimeUnit timeUnit) {
+		MessageBatcher batcher = new MessageBatcher(maxCount, maxBytes, timeUnit.toMillis(linger),
+				this::postAppEventBatch);
+		batcher.setListener(batchListener);
+		MessageBatcher previous = appEventBatcher;
+		this.appEventBatcher = batcher;
+		if (previous != null) {
+			previous.close();
+		}
+		return this;
+	}
+
+	@Override
+	public boolean isBuffering(MessageType type) {
+		return type == MessageType.APP_EVENT && appEventBatcher != null && !appEventBatchRejected;
+	}
+
+	@Override
+	public void setBatchListener(BatchListener listener) {
+		this.batchListener = listener;
+		MessageBatcher batcher = appEventBatcher;
+		if (batcher != null) {
+			batcher.setListener(listener);
+		}
+	}
+
+	/**
+	 * App event batches that failed and could not be handed back to an agent.
+	 */
+	public long getDroppedAppEventBatchCount() {
+		MessageBatcher batcher = appEventBatcher;
+		return batcher == null ? 0 : batcher.getDroppedBatchCount();
+	}
+
+	public HttpAgentSender withAppEventBatchPath(String path) {
+		this.appEventBatchPath = path;
+		return this;
+	}
+
+	public String getAppEventBatchUrl() {
+		return baseUrl + appEventBatchPath;
+	}
+
+	/**
+	 * Compress request bodies of at least <code>minBytes</code> with the given
+	 * codec and send them with a matching <code>Content-Encoding</code>. If the
+	 * server answers 415, the request is repeated uncompressed and the codec is
+	 * no longer used.
+	 */
+	public HttpAgentSender withCodec(PayloadCodec codec, long minBytes) {
+		this.codec = codec;
+		this.codecMinBytes = minBytes;
+		return this;
+	}
+
+	public HttpAgentSender withCodec(PayloadCodec codec) {
+		return withCodec(codec, DEFAULT_CODEC_MIN_BYTES);
+	}
+
+	/**
+	 * Send request bodies in the given format. If the server answers 415 to a
+	 * binary format, the request is repeated as JSON and JSON is used from then
+	 * on. App event batches are always sent as JSON.
+	 */
+	public HttpAgentSender withWireFormat(WireFormat format) {
+		this.wireFormat = format;
+		this.wireFormatRejected = false;
+		return this;
+	}
+
+	WireFormat getWireFormat() {
+		return wireFormatRejected ? WireFormat.JSON : wireFormat;
+	}
+
 	private void post(String url, ObjectNode data) {
+		post(url, encode(new JsonRequestBody(data, getWireFormat())), getIdempotencyKey(data));
+	}
+
+	static String getIdempotencyKey(ObjectNode data) {
+		JsonNode key = data.get(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE);
+		return key == null ? null : key.asText();
+	}
+
+	RequestBody encode(JsonRequestBody body) {
+		PayloadCodec c = codec;
+		if (c == null || codecRejected) {
+			return body;
+		}
+		try {
+			Buffer small = body.bufferIfSmallerThan(codecMinBytes);
+			if (small != null) {
+				return body.withBuffer(small.readByteString());
+			}
+		} catch (IOException e) {
+			throw new AgentException(e);
+		}
+		return new EncodedRequestBody(body, c);
+	}
+
+	RequestBody encode(byte[] json) {
+		RequestBody body = RequestBody.create(JsonRequestBody.APPLICATION_JSON, json);
+		PayloadCodec c = codec;
+		if (c == null || codecRejected || json.length < codecMinBytes) {
+			return body;
+		}
+		return new EncodedRequestBody(body, c);
+	}
+
+	private void post(String url, RequestBody body) {
+		post(url, body, null);
+	}
+
+	private void post(String url, RequestBody body, String idempotencyKey) {
+		int code = execute(url, body, idempotencyKey);
+		if (code != 200) {
+			throw new AgentException("POST " + url + " statusCode=" + code);
+		}
+	}
+
+	private int execute(String url, RequestBody body) {
+		return execute(url, body, null);
+	}
+
+	/**
+	 * POSTs the body. If an idempotency key is given, it is sent as an
+	 * <code>Idempotency-Key</code> header so that the server can recognize a
+	 * retried request.
+	 */
+	private int execute(String url, RequestBody body, String idempotencyKey) {
 
 		Response response = null;
 		try {
@@ -95,18 +283,42 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 			if (username != null && password != null) {
 				requestBuilder = requestBuilder.addHeader("Authorization", Credentials.basic(username, password));
 			}
+			if (idempotencyKey != null) {
+				requestBuilder = requestBuilder.header("Idempotency-Key", idempotencyKey);
+			}
+			if (body instanceof EncodedRequestBody) {
+				requestBuilder = requestBuilder.header("Content-Encoding",
+						((EncodedRequestBody) body).getContentEncoding());
+			}
 
-			response = okhttp.newCall(requestBuilder
-					.post(RequestBody.create(MediaType.parse("application/json"), data.toString())).url(url).build())
-					.execute();
+			response = okhttp.newCall(requestBuilder.post(body).url(url).build()).execute();
 			int code = response.code();
 
 			if (logger.isDebugEnabled()) {
 				logger.debug("POST {} rc={}", url, code);
 			}
-			if (code != 200) {
-				throw new AgentException("POST " + url + " statusCode=" + code);
+			if (code == 415 && body instanceof EncodedRequestBody) {
+				logger.info("POST {} statusCode={} -- disabling {} compression",url,code,
+						((EncodedRequestBody) body).getContentEncoding());
+				codecRejected = true;
+				response.body().close();
+				response = null;
+				return execute(url, ((EncodedRequestBody) body).delegate, idempotencyKey);
+			}
+			if (code == 415 && body instanceof JsonRequestBody
+					&& ((JsonRequestBody) body).getWireFormat() != WireFormat.JSON) {
+				logger.info("POST {} statusCode={} -- falling back from {} to JSON", url, code,
+						((JsonRequestBody) body).getWireFormat());
+				wireFormatRejected = true;
+				response.body().close();
+				response = null;
+				return execute(url, encode(((JsonRequestBody) body).asJson()), idempotencyKey);
 			}
+			if (code == 429 || code == 503) {
+				throw new BackpressureException("POST " + url + " statusCode=" + code,
+						parseRetryAfter(response.header("Retry-After")));
+			}
+			return code;
 
 		} catch (IOException e) {
 			throw new AgentException("POST " + url, e);
@@ -117,20 +329,140 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 		}
 	}
 
+	/**
+	 * Parses a Retry-After header given either as seconds or as an HTTP date.
+	 *
+	 * @return the delay in milliseconds, or -1 if there is none
+	 */
+	static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter));
+		} catch (NumberFormatException e) {
+			// not seconds
+		}
+		try {
+			return Math.max(0, ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+					.toEpochMilli() - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	void postAppEventBatch(List<byte[]> events) {
+		if (!appEventBatchRejected) {
+			byte[] batch = MessageBatcher.toJsonArray(events);
+
+			String url = getAppEventBatchUrl();
+			int code = execute(url, encode(batch));
+			if (code == 200) {
+				return;
+			}
+			if (!isBatchRejection(code)) {
+				throw new AgentException("POST " + url + " statusCode=" + code);
+			}
+			logger.info("POST {} statusCode={} -- falling back to one request per app event", url, code);
+			appEventBatchRejected = true;
+		}
+		for (byte[] event : events) {
+			post(getAppEventUrl(), encode(event));
+		}
+	}
+
+	static boolean isBatchRejection(int code) {
+		return code == 404 || code == 405 || code == 415 || code == 501;
+	}
+
+	/**
+	 * Sends any buffered app events.
+	 */
+	@Override
+	public void flush() {
+		MessageBatcher batcher = appEventBatcher;
+		if (batcher != null) {
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * Sends any buffered app events and stops the batching timer. The sender
+	 * can still be used afterwards.
+	 */
+	@Override
+	public void close() {
+		MessageBatcher batcher = appEventBatcher;
+		if (batcher != null) {
+			batcher.close();
+		}
+	}
+
 	@Override
 	public void sendThreadDump(ObjectNode status) {
 		post(getThreadDumpUrl(), status);
 	}
 
+	/**
+	 * Streams the status attributes followed by the encoded dump, so the
+	 * request body is produced while it is being sent.
+	 */
+	@Override
+	public void sendThreadDump(ObjectNode status, EncodedThreadDump threadDump) {
+		JsonRequestBody body = new JsonRequestBody(gen -> {
+			gen.writeStartObject();
+			Iterator<Entry<String, JsonNode>> t = status.fields();
+			while (t.hasNext()) {
+				Entry<String, JsonNode> entry = t.next();
+				gen.writeFieldName(entry.getKey());
+				gen.writeTree(entry.getValue());
+			}
+			gen.writeFieldName(threadDump.getFieldName());
+			// checked while writing, since a rejected codec resends the
+			// plain body
+			boolean encoded = codec != null && !codecRejected;
+			if (gen.canWriteBinaryNatively()) {
+				// binary formats have no raw string to stream into, but take
+				// the gzipped bytes as they are. These are held in memory, so
+				// they are still compressed, if only quickly.
+				threadDump.writeBinaryTo(gen, encoded ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+			} else {
+				gen.writeRawValue("\"");
+				gen.flush();
+				threadDump.writeTo((OutputStream) gen.getOutputTarget(),
+						encoded ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+				gen.writeRaw('"');
+			}
+			gen.writeEndObject();
+		}, getWireFormat());
+		PayloadCodec c = codec;
+		post(getThreadDumpUrl(), c == null || codecRejected ? body : new EncodedRequestBody(body, c),
+				getIdempotencyKey(status));
+	}
+
 	@Override
 	public void sendAppConfigDump(ObjectNode n) {
 		post(getAppConfigDumpUrl(), n);
 	}
 
+	@Override
+	public void sendStackProfile(ObjectNode n) {
+		post(getStackProfileUrl(), n);
+	}
+
 	@Override
 	public void sendCheckIn(ObjectNode status) {
 
-		post(getCheckInUrl(), status);
+		String url = getCheckInUrl();
+		int code = execute(url, encode(new JsonRequestBody(status, getWireFormat())), getIdempotencyKey(status));
+		if (code == 409 && status.path(MacGyverAgent.HEARTBEAT_ATTRIBUTE).asBoolean()) {
+			throw new UnknownContentHashException("POST " + url + " statusCode=" + code + " contentHash="
+					+ status.path(MacGyverAgent.CONTENT_HASH_ATTRIBUTE).asText());
+		}
+		if (code != 200) {
+			throw new AgentException("POST " + url + " statusCode=" + code);
+		}
 	}
 
 	protected void doInit() {
@@ -152,8 +484,33 @@ public class HttpAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 	@Override
 	public void sendAppEvent(ObjectNode n) {
 
-		post(getAppEventUrl(), n);
+		MessageBatcher batcher = appEventBatcher;
+		if (batcher != null && !appEventBatchRejected) {
+			try {
+				batcher.add(mapper.writeValueAsBytes(n), n);
+			} catch (JsonProcessingException e) {
+				throw new AgentException(e);
+			}
+		} else {
+			post(getAppEventUrl(), n);
+		}
+
+	}
 
+	/**
+	 * Writes the event straight into the request body, or into the batch,
+	 * without building a tree.
+	 */
+	@Override
+	public void sendAppEvent(AppEvent event) {
+
+		MessageBatcher batcher = appEventBatcher;
+		if (batcher != null && !appEventBatchRejected) {
+			batcher.add(event.toJsonBytes(), event);
+		} else {
+			post(getAppEventUrl(), encode(new JsonRequestBody(event::writeTo, getWireFormat())),
+					event.get(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE));
+		}
 	}
 
 }
@@ -0,0 +1,154 @@
+package io.macgyver.agent.sender.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.macgyver.agent.sender.WireFormat;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * A request body that writes JSON (or one of the binary {@link WireFormat}s)
+ * straight into the OkHttp sink, so the payload never exists as a String or
+ * byte array. The body is sent with chunked transfer encoding unless it has
+ * been buffered.
+ */
+public class JsonRequestBody extends RequestBody {
+
+	public static final MediaType APPLICATION_JSON = MediaType.parse(WireFormat.JSON.getContentType());
+
+	static final MediaType[] MEDIA_TYPES = new MediaType[WireFormat.values().length];
+
+	static {
+		for (WireFormat format : WireFormat.values()) {
+			MEDIA_TYPES[format.ordinal()] = MediaType.parse(format.getContentType());
+		}
+	}
+
+	/**
+	 * Writes the body. OkHttp may call this more than once if a request has to
+	 * be retried, so it must produce the same output every time.
+	 */
+	@FunctionalInterface
+	public static interface JsonWriter {
+		public void write(JsonGenerator gen) throws IOException;
+	}
+
+	final JsonWriter writer;
+	final WireFormat format;
+	final ByteString buffered;
+
+	public JsonRequestBody(JsonWriter writer) {
+		this(writer, WireFormat.JSON);
+	}
+
+	public JsonRequestBody(JsonNode data) {
+		this(data, WireFormat.JSON);
+	}
+
+	public JsonRequestBody(JsonNode data, WireFormat format) {
+		this(gen -> gen.writeTree(data), format);
+	}
+
+	public JsonRequestBody(JsonWriter writer, WireFormat format) {
+		this(writer, format, null);
+	}
+
+	private JsonRequestBody(JsonWriter writer, WireFormat format, ByteString buffered) {
+		this.writer = writer;
+		this.format = format;
+		this.buffered = buffered;
+	}
+
+	public WireFormat getWireFormat() {
+		return format;
+	}
+
+	/**
+	 * The same body as JSON.
+	 */
+	JsonRequestBody asJson() {
+		return format == WireFormat.JSON ? this : new JsonRequestBody(writer, WireFormat.JSON);
+	}
+
+	/**
+	 * The same body, sent from the given bytes with a content length.
+	 */
+	JsonRequestBody withBuffer(ByteString bytes) {
+		return new JsonRequestBody(writer, format, bytes);
+	}
+
+	@Override
+	public MediaType contentType() {
+		return MEDIA_TYPES[format.ordinal()];
+	}
+
+	@Override
+	public long contentLength() {
+		return buffered == null ? -1 : buffered.size();
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		if (buffered != null) {
+			sink.write(buffered);
+			return;
+		}
+		// OkHttp flushes the sink once the body is written; flushing it earlier
+		// would put the chunk and the chunk terminator in separate packets
+		JsonGenerator gen = format.getObjectMapper().getFactory().createGenerator(sink.outputStream());
+		writer.write(gen);
+		gen.close();
+	}
+
+	/**
+	 * Serializes the body into a buffer if it is smaller than
+	 * <code>limit</code> bytes. Gives up, returning null, as soon as that limit
+	 * is reached, so at most a few KB beyond the limit are ever written.
+	 */
+	Buffer bufferIfSmallerThan(long limit) throws IOException {
+		Buffer buffer = new Buffer();
+		OutputStream limited = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (buffer.size() + len >= limit) {
+					throw LimitReachedException.INSTANCE;
+				}
+				buffer.write(b, off, len);
+			}
+		};
+		try {
+			JsonGenerator gen = format.getObjectMapper().getFactory().createGenerator(limited);
+			writer.write(gen);
+			gen.close();
+		} catch (LimitReachedException e) {
+			return null;
+		}
+		return buffer;
+	}
+
+	static class LimitReachedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		static final LimitReachedException INSTANCE = new LimitReachedException();
+
+		LimitReachedException() {
+			super("limit reached", null);
+			setStackTrace(new StackTraceElement[0]);
+		}
+	}
+}
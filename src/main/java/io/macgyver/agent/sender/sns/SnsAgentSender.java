@@ -1,20 +1,54 @@
 package io.macgyver.agent.sender.sns;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sns.AmazonSNSClient;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.macgyver.agent.AgentException;
+import io.macgyver.agent.AppEvent;
+import io.macgyver.agent.BackpressureException;
+import io.macgyver.agent.MacGyverAgent.BatchListener;
 import io.macgyver.agent.MacGyverAgent.MessageType;
+import io.macgyver.agent.codec.PayloadCodec;
+import io.macgyver.agent.sender.MessageBatcher;
+import io.macgyver.agent.sender.WireFormat;
+
+public class SnsAgentSender implements io.macgyver.agent.MacGyverAgent.BufferingSender, Flushable, Closeable {
+
+	public static final int MAX_MESSAGE_BYTES = 256 * 1024;
 
-public class SnsAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
+	static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	ObjectMapper mapper = new ObjectMapper();
 
+	PayloadCodec codec;
+	long codecMinBytes = 0;
+	WireFormat wireFormat = WireFormat.JSON;
+
+	long aggregationMaxBytes = -1;
+	long aggregationLingerMillis = 0;
+	Map<String, MessageBatcher> batchers = new ConcurrentHashMap<>();
+	volatile BatchListener batchListener;
+
 	AmazonSNSClient client;
 	String topicArn;
 
@@ -29,6 +63,11 @@ public class SnsAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 		return (T) this;
 	}
 
+	@Override
+	public String getSenderId() {
+		return "sns:" + topicArn;
+	}
+
 	void init() {
 		if (client==null) {
 			throw new IllegalStateException("SNS client not set");
@@ -44,23 +83,194 @@ public class SnsAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 	
 		return topicArn;
 	}
+	/**
+	 * Pack several messages into a single SNS message, sent as a JSON array of
+	 * the usual messageType/ts/data envelopes. A message is published once the
+	 * array would grow past <code>maxBytes</code> (capped at the SNS limit of
+	 * 256KB) or the oldest envelope in it is <code>linger</code> old. When
+	 * the sender is added to an agent, the messages of a publish that fails
+	 * are retried or spooled by the agent.
+	 */
+	public <T extends SnsAgentSender> T withAggregation(long maxBytes, long linger, TimeUnit timeUnit) {
+		this.aggregationMaxBytes = Math.min(maxBytes, MAX_MESSAGE_BYTES);
+		this.aggregationLingerMillis = timeUnit.toMillis(linger);
+		return (T) this;
+	}
+
+	@Override
+	public boolean isBuffering(MessageType type) {
+		return aggregationMaxBytes > 0;
+	}
+
+	@Override
+	public void setBatchListener(BatchListener listener) {
+		this.batchListener = listener;
+		for (MessageBatcher batcher : batchers.values()) {
+			batcher.setListener(listener);
+		}
+	}
+
+	/**
+	 * Aggregated publishes that failed and could not be handed back to an
+	 * agent.
+	 */
+	public long getDroppedBatchCount() {
+		long count = 0;
+		for (MessageBatcher batcher : batchers.values()) {
+			count += batcher.getDroppedBatchCount();
+		}
+		return count;
+	}
+
 	protected void send(MessageType type, ObjectNode data) {
+		send(type, data, data);
+	}
+
+	/**
+	 * @param tag
+	 *            what the agent handed to this sender, reported back to it if
+	 *            an aggregated publish fails
+	 */
+	void send(MessageType type, ObjectNode data, Object tag) {
 		init();
-		PublishRequest pr = new PublishRequest();
 
 		ObjectNode wrapper = mapper.createObjectNode();
 
 		wrapper.put("messageType", type.toString());
 		wrapper.put("ts", System.currentTimeMillis());
-		wrapper.set("data", data);
+		setData(wrapper, data);
 
-		pr.setMessage(wrapper.toString());
 		String topic = getTopicArnForMessageType(type);
+		if (aggregationMaxBytes > 0) {
+			try {
+				getBatcher(topic).add(mapper.writeValueAsBytes(wrapper), tag);
+			} catch (JsonProcessingException e) {
+				throw new AgentException(e);
+			}
+			return;
+		}
 		logger.debug("sending message type={} to topicArn={}",type,topic);
+		publishWithBackpressure(topic, wrapper.toString());
+	}
+
+	/**
+	 * Compress the data of envelopes whose JSON is at least
+	 * <code>minBytes</code> long. The envelope then carries the codec name in
+	 * <code>contentEncoding</code> and the base64 of the compressed data in
+	 * <code>encodedData</code>, in place of <code>data</code>.
+	 */
+	public <T extends SnsAgentSender> T withCodec(PayloadCodec codec, long minBytes) {
+		this.codec = codec;
+		this.codecMinBytes = minBytes;
+		return (T) this;
+	}
+
+	/**
+	 * Serialize the data of envelopes in the given format. Since SNS messages
+	 * are text, binary data is sent as base64 in <code>encodedData</code>,
+	 * with the format's MIME type in <code>contentType</code>. The envelope
+	 * itself stays JSON.
+	 */
+	public <T extends SnsAgentSender> T withWireFormat(WireFormat format) {
+		this.wireFormat = format;
+		return (T) this;
+	}
+
+	void setData(ObjectNode wrapper, ObjectNode data) {
+		WireFormat format = wireFormat;
+		if (codec == null && format == WireFormat.JSON) {
+			wrapper.set("data", data);
+			return;
+		}
+		try {
+			byte[] bytes = format.getObjectMapper().writeValueAsBytes(data);
+			boolean compress = codec != null && bytes.length >= codecMinBytes;
+			if (!compress && format == WireFormat.JSON) {
+				wrapper.set("data", data);
+				return;
+			}
+			int size = compress ? bytes.length / 4 : bytes.length * 4 / 3 + 4;
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream(size);
+			OutputStream base64 = Base64.getEncoder().wrap(encoded);
+			if (compress) {
+				try (OutputStream out = codec.encode(base64)) {
+					out.write(bytes);
+				}
+			} else {
+				base64.write(bytes);
+			}
+			base64.close();
+			if (format != WireFormat.JSON) {
+				wrapper.put("contentType", format.getContentType());
+			}
+			if (compress) {
+				wrapper.put("contentEncoding", codec.getName());
+			}
+			wrapper.put("encodedData", encoded.toString("US-ASCII"));
+		} catch (IOException e) {
+			throw new AgentException(e);
+		}
+	}
+
+	protected void publish(String topic, String message) {
+		PublishRequest pr = new PublishRequest();
+		pr.setMessage(message);
 		pr.setTopicArn(topic);
 
 		PublishResult result = client.publish(pr);
-		
+	}
+
+	/**
+	 * Publishes, turning SNS throttling into a {@link BackpressureException}
+	 * so that the agent backs off.
+	 */
+	void publishWithBackpressure(String topic, String message) {
+		try {
+			publish(topic, message);
+		} catch (AmazonServiceException e) {
+			if (isThrottling(e)) {
+				throw new BackpressureException("publish to " + topic + " throttled: " + e.getErrorMessage(), -1);
+			}
+			throw e;
+		}
+	}
+
+	static boolean isThrottling(AmazonServiceException e) {
+		String code = e.getErrorCode();
+		return e.getStatusCode() == 429 || "Throttling".equals(code) || "ThrottlingException".equals(code);
+	}
+
+	MessageBatcher getBatcher(String topic) {
+		return batchers.computeIfAbsent(topic, t -> {
+			MessageBatcher batcher = new MessageBatcher(Integer.MAX_VALUE, aggregationMaxBytes,
+					aggregationLingerMillis, envelopes -> {
+						logger.debug("sending {} aggregated message(s) to topicArn={}", envelopes.size(), t);
+						publishWithBackpressure(t, new String(MessageBatcher.toJsonArray(envelopes), UTF_8));
+					});
+			batcher.setListener(batchListener);
+			return batcher;
+		});
+	}
+
+	/**
+	 * Publishes any aggregated messages that are still buffered.
+	 */
+	@Override
+	public void flush() {
+		for (MessageBatcher batcher : batchers.values()) {
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * Publishes any aggregated messages and stops the aggregation timers. The
+	 * sender can still be used afterwards.
+	 */
+	@Override
+	public void close() {
+		for (MessageBatcher batcher : batchers.values()) {
+			batcher.close();
+		}
 	}
 
 	@Override
@@ -79,10 +289,48 @@ public class SnsAgentSender implements io.macgyver.agent.MacGyverAgent.Sender {
 		send(MessageType.APP_CONFIG_DUMP, appConfigs);
 	}
 
+	@Override
+	public void sendStackProfile(ObjectNode n) {
+		send(MessageType.STACK_PROFILE, n);
+	}
+
 	@Override
 	public void sendAppEvent(ObjectNode n) {
 		send(MessageType.APP_EVENT,n);
 
 	}
 
+	/**
+	 * Writes the envelope and the event with a generator instead of building a
+	 * tree, unless the data has to be encoded.
+	 */
+	@Override
+	public void sendAppEvent(AppEvent event) {
+		if (codec != null || wireFormat != WireFormat.JSON) {
+			send(MessageType.APP_EVENT, event.toObjectNode(), event);
+			return;
+		}
+		init();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try (JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+			gen.writeStartObject();
+			gen.writeStringField("messageType", MessageType.APP_EVENT.toString());
+			gen.writeNumberField("ts", System.currentTimeMillis());
+			gen.writeFieldName("data");
+			event.writeTo(gen);
+			gen.writeEndObject();
+		} catch (IOException e) {
+			throw new AgentException(e);
+		}
+
+		String topic = getTopicArnForMessageType(MessageType.APP_EVENT);
+		if (aggregationMaxBytes > 0) {
+			getBatcher(topic).add(out.toByteArray(), event);
+			return;
+		}
+		logger.debug("sending message type={} to topicArn={}", MessageType.APP_EVENT, topic);
+		publishWithBackpressure(topic, new String(out.toByteArray(), UTF_8));
+	}
+
 }
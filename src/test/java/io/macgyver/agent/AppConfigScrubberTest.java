@@ -7,6 +7,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
+import java.util.regex.Pattern;
+
 /**
  * Created by atsui on 6/23/17.
  */
@@ -85,4 +87,48 @@ public class AppConfigScrubberTest {
         Assertions.assertThat(appConfig.get("key").asText().equals("foobar"));
         Assertions.assertThat(appConfig.get("key").asText().equals("*****"));
     }
+
+    @Test
+    public void testSameMatchesAsRegex() {
+        String[] keys = { "db_password", "DB_PASSWORD", "Db_Key", "api_token", "_key", "key", "db_passwords",
+                "password", "my.secret_key.name", "line\nbreak_key", "line\u2028break_token", "kelvin_\u212Aey",
+                "long_\u017Fession_token", "foo_bar", "foobar", "secret", "top_SECRET", "aa", "", "x_key_key" };
+        String[] extras = { null, "", ".*bar", ".*secret.*", "(?-i).*SECRET", "(a)\\1", "(.)\\2|aa", "foo|.*_KEY" };
+
+        for (String extra : extras) {
+            String regex = ".*_(password|key|token)";
+            if (extra != null && !extra.isEmpty()) {
+                regex += "|" + extra;
+            }
+            Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+
+            for (String key : keys) {
+                // twice, to go through the memoized result
+                for (int i = 0; i < 2; i++) {
+                    Assertions.assertThat(AppConfigScrubber.getKeyMatcher(extra).matches(key))
+                            .as("key '%s' with extra regex '%s'", key, extra)
+                            .isEqualTo(pattern.matcher(key).matches());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScrubLargeArray() {
+        ArrayNode appConfigs = mapper.createArrayNode();
+        int count = AppConfigScrubber.PARALLEL_THRESHOLD * 2;
+        for (int i = 0; i < count; i++) {
+            ObjectNode config = mapper.createObjectNode();
+            config.put("key", i % 3 == 0 ? "config" + i + "_token" : "config" + i);
+            config.put("value", "value" + i);
+            appConfigs.add(config);
+        }
+
+        AppConfigScrubber.scrub(appConfigs, ".*7");
+
+        for (int i = 0; i < count; i++) {
+            boolean scrubbed = i % 3 == 0 || i % 10 == 7;
+            Assertions.assertThat(appConfigs.get(i).get("value").asText()).isEqualTo(scrubbed ? "*****" : "value" + i);
+        }
+    }
 }
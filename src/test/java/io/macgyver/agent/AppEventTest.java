@@ -0,0 +1,48 @@
+package io.macgyver.agent;
+
+import java.nio.charset.StandardCharsets;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.macgyver.agent.MacGyverAgent.AppEventType;
+
+public class AppEventTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testSameJsonAsBuilder() throws Exception {
+		AppEventBuilder builder = new AppEventBuilder().withEventType(AppEventType.DEPLOY_COMPLETE).withAppId("myapp")
+				.withMessage("caf\u00e9 \"quoted\"\n").withHost("somehost").withAttribute("version", "1.2")
+				.withAttribute("appId", "otherapp").withAttribute("missing", null);
+		AppEvent event = new AppEvent().withEventType(AppEventType.DEPLOY_COMPLETE).withAppId("myapp")
+				.withMessage("caf\u00e9 \"quoted\"\n").withHost("somehost").withAttribute("version", "1.2")
+				.withAttribute("appId", "otherapp").withAttribute("missing", null);
+
+		String expected = mapper.writeValueAsString(builder.build());
+		Assertions.assertThat(new String(event.toJsonBytes(), StandardCharsets.UTF_8)).isEqualTo(expected);
+		Assertions.assertThat(event.toString()).isEqualTo(expected);
+		Assertions.assertThat(mapper.writeValueAsString(event.toObjectNode())).isEqualTo(expected);
+	}
+
+	@Test
+	public void testReuse() {
+		AppEvent event = new AppEvent();
+		for (int i = 0; i < 20; i++) {
+			event.withAttribute("a" + i, "v" + i);
+		}
+		AppEvent copy = event.copy();
+		Assertions.assertThat(event.size()).isEqualTo(20);
+
+		event.clear().withMessage("again");
+		Assertions.assertThat(event.size()).isEqualTo(1);
+		Assertions.assertThat(event.get("a0")).isNull();
+		Assertions.assertThat(event.toString()).isEqualTo("{\"message\":\"again\"}");
+
+		Assertions.assertThat(copy.size()).isEqualTo(20);
+		Assertions.assertThat(copy.get("a19")).isEqualTo("v19");
+	}
+}
@@ -0,0 +1,195 @@
+package io.macgyver.agent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.agent.MacGyverAgent.AppEventType;
+import io.macgyver.agent.MacGyverAgent.MessageType;
+import io.macgyver.agent.MacGyverAgent.OverflowPolicy;
+
+public class AsyncDispatcherTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testRingBuffer() {
+		RingBuffer<Integer> rb = new RingBuffer<>(3);
+		Assertions.assertThat(rb.capacity()).isEqualTo(4);
+		for (int i = 0; i < 4; i++) {
+			Assertions.assertThat(rb.offer(i)).isTrue();
+		}
+		Assertions.assertThat(rb.offer(99)).isFalse();
+		Assertions.assertThat(rb.poll()).isEqualTo(0);
+		Assertions.assertThat(rb.offer(4)).isTrue();
+		for (int i = 1; i < 5; i++) {
+			Assertions.assertThat(rb.poll()).isEqualTo(i);
+		}
+		Assertions.assertThat(rb.poll()).isNull();
+		Assertions.assertThat(rb.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testAsyncAppEvent() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		List<String> threads = new CopyOnWriteArrayList<>();
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendAppEvent(ObjectNode n) {
+				threads.add(Thread.currentThread().getName());
+				super.sendAppEvent(n);
+				latch.countDown();
+			}
+		};
+		MacGyverAgent agent = new MacGyverAgent().withAsyncDispatch(16, 1024 * 1024, OverflowPolicy.DROP_OLDEST);
+		agent.withSender(sender);
+		try {
+			agent.reportAppEvent(new AppEventBuilder().withEventType(AppEventType.GENERIC_ERROR).withMessage("oops"));
+
+			Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+			Assertions.assertThat(threads).containsExactly("macgyver-agent-dispatcher");
+			Assertions.assertThat(sender.last().path("message").asText()).isEqualTo("oops");
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testDropNewest() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> delivered = new CopyOnWriteArrayList<>();
+
+		AsyncDispatcher dispatcher = new AsyncDispatcher(2, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 0, e -> {
+			blocked.countDown();
+			awaitQuietly(release);
+			delivered.add(e.data.path("message").asText());
+		});
+
+		dispatcher.offer(envelope("a"));
+		Assertions.assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+		Assertions.assertThat(dispatcher.offer(envelope("b"))).isTrue();
+		Assertions.assertThat(dispatcher.offer(envelope("c"))).isTrue();
+		Assertions.assertThat(dispatcher.offer(envelope("d"))).isFalse();
+
+		release.countDown();
+		dispatcher.stop(5, TimeUnit.SECONDS);
+
+		Assertions.assertThat(delivered).containsExactly("a", "b", "c");
+		Assertions.assertThat(dispatcher.getDroppedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testDropOldestByBytes() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> delivered = new CopyOnWriteArrayList<>();
+
+		long size = envelope("x").getEstimatedBytes();
+		AsyncDispatcher dispatcher = new AsyncDispatcher(64, size * 2, OverflowPolicy.DROP_OLDEST, 0, e -> {
+			blocked.countDown();
+			awaitQuietly(release);
+			delivered.add(e.data.path("message").asText());
+		});
+
+		dispatcher.offer(envelope("a"));
+		Assertions.assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+		dispatcher.offer(envelope("b"));
+		dispatcher.offer(envelope("c"));
+		dispatcher.offer(envelope("d"));
+
+		release.countDown();
+		dispatcher.stop(5, TimeUnit.SECONDS);
+
+		Assertions.assertThat(delivered).containsExactly("a", "c", "d");
+		Assertions.assertThat(dispatcher.getDroppedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testBlockTimesOut() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AsyncDispatcher dispatcher = new AsyncDispatcher(2, Long.MAX_VALUE, OverflowPolicy.BLOCK,
+				TimeUnit.MILLISECONDS.toNanos(50), e -> awaitQuietly(release));
+
+		dispatcher.offer(envelope("a"));
+		dispatcher.offer(envelope("b"));
+		dispatcher.offer(envelope("c"));
+
+		long t0 = System.nanoTime();
+		Assertions.assertThat(dispatcher.offer(envelope("d"))).isFalse();
+		Assertions.assertThat(System.nanoTime() - t0).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+
+		release.countDown();
+		dispatcher.stop(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testConcurrentProducersStayWithinBytes() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		long size = envelope("x").getEstimatedBytes();
+		AsyncDispatcher dispatcher = new AsyncDispatcher(1024, size * 4, OverflowPolicy.DROP_NEWEST, 0,
+				e -> awaitQuietly(release));
+
+		List<Thread> producers = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					dispatcher.offer(envelope("x"));
+				}
+			});
+			producers.add(t);
+			t.start();
+		}
+		for (Thread t : producers) {
+			t.join();
+		}
+
+		// one is held by the blocked dispatcher thread, the rest are queued
+		Assertions.assertThat(dispatcher.queuedBytes.get()).isLessThanOrEqualTo(size * 4);
+		Assertions.assertThat(dispatcher.getQueueSize()).isLessThanOrEqualTo(4);
+
+		release.countDown();
+		dispatcher.stop(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testStaysStoppedAfterStop() {
+		MemorySender sender = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent().withAsyncDispatch(16, 1024 * 1024, OverflowPolicy.DROP_OLDEST);
+		agent.withSender(sender);
+		agent.reportAppEvent(new AppEventBuilder().withMessage("before"));
+		AsyncDispatcher dispatcher = agent.asyncDispatcher;
+		agent.stop();
+
+		agent.reportAppEvent(new AppEventBuilder().withMessage("after"));
+
+		Assertions.assertThat(agent.asyncDispatcher).isSameAs(dispatcher);
+		Assertions.assertThat(dispatcher.thread.isAlive()).isFalse();
+		Assertions.assertThat(sender.eventList).hasSize(1);
+		Assertions.assertThat(agent.getDroppedMessageCount()).isEqualTo(1);
+	}
+
+	Envelope envelope(String message) {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("message", message);
+		return new Envelope(MessageType.APP_EVENT, n);
+	}
+
+	static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
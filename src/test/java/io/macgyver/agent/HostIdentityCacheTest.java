@@ -0,0 +1,64 @@
+package io.macgyver.agent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class HostIdentityCacheTest {
+
+	@Test
+	public void testStaleValueServedWhileRefreshing() throws Exception {
+		AtomicInteger lookups = new AtomicInteger();
+		CountDownLatch slowDns = new CountDownLatch(1);
+		HostIdentityCache cache = new HostIdentityCache(() -> {
+			if (lookups.incrementAndGet() > 1) {
+				slowDns.await();
+			}
+			return InetAddress.getByAddress("web-1.example.com", new byte[] { 10, 0, 0, 1 });
+		}).withTimeToLive(0, TimeUnit.MILLISECONDS);
+
+		HostIdentity first = cache.get();
+		Assertions.assertThat(first.getHostIp()).isEqualTo("10.0.0.1");
+		Assertions.assertThat(first.getDnsName()).isEqualTo("web-1.example.com");
+		Assertions.assertThat(first.getUnqualifiedHostname()).isEqualTo("web-1");
+
+		// the refresh hangs in the background, callers keep getting the cached value
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			Assertions.assertThat(cache.get()).isSameAs(first);
+		}
+		Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1));
+		slowDns.countDown();
+		Assertions.assertThat(lookups.get()).isLessThanOrEqualTo(2);
+	}
+
+	@Test
+	public void testLastKnownValueKeptOnFailure() {
+		AtomicInteger lookups = new AtomicInteger();
+		HostIdentityCache cache = new HostIdentityCache(() -> {
+			if (lookups.incrementAndGet() > 1) {
+				throw new UnknownHostException("resolver down");
+			}
+			return InetAddress.getByAddress("web-1", new byte[] { 10, 0, 0, 1 });
+		});
+
+		HostIdentity first = cache.get();
+		cache.refresh();
+		Assertions.assertThat(lookups.get()).isEqualTo(2);
+		Assertions.assertThat(cache.get()).isSameAs(first);
+	}
+
+	@Test
+	public void testUnknown() {
+		HostIdentityCache cache = new HostIdentityCache(() -> {
+			throw new UnknownHostException("resolver down");
+		});
+		Assertions.assertThat(cache.get().getHostIp()).isEqualTo("127.0.0.1");
+		Assertions.assertThat(cache.get().getDnsName()).isEqualTo("localhost");
+	}
+}
@@ -3,14 +3,34 @@ package io.macgyver.agent;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.macgyver.agent.MacGyverAgent.MessageType;
 import io.macgyver.agent.MacGyverAgent.Sender;
+import io.macgyver.agent.decorator.StandardDiscoveryDecorator;
+import io.macgyver.agent.decorator.StaticStatusDecorator;
 import org.assertj.core.api.Assertions;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
 public class MacGyverAgentTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	Logger logger = LoggerFactory.getLogger(MacGyverAgentTest.class);
 
 	@Test
@@ -47,6 +67,507 @@ public class MacGyverAgentTest {
 		agent.reportCheckIn();
 	}
 
+	@Test
+	public void testStaticStatus() {
+		MacGyverAgent agent = new MacGyverAgent();
+		ObjectMapper mapper = new ObjectMapper();
+		int[] calls = new int[2];
+		agent.addStatusDecorator(new StaticStatusDecorator() {
+
+			@Override
+			public void decorateStatic(ObjectNode status) {
+				calls[0]++;
+				status.put("region", "us-west-2");
+				status.put("not valid", "x");
+			}
+
+			@Override
+			public void decorateDynamic(ObjectNode status) {
+				calls[1]++;
+				status.put("requestCount", calls[1]);
+			}
+		});
+
+		ObjectNode first = mapper.createObjectNode();
+		agent.decorate(first);
+		ObjectNode second = mapper.createObjectNode();
+		agent.decorate(second);
+
+		Assertions.assertThat(calls).containsExactly(1, 2);
+		Assertions.assertThat(second.path("region").asText()).isEqualTo("us-west-2");
+		Assertions.assertThat(second.has("not valid")).isFalse();
+		Assertions.assertThat(second.path("requestCount").asInt()).isEqualTo(2);
+		Assertions.assertThat(second.path("timestamp").asText(null)).isNotNull();
+		Assertions.assertThat(second.path("osName").asText(null)).isNotNull();
+
+		// changing the decorators rebuilds the static part
+		agent.addStatusDecorator(status -> status.put("extra", true));
+		ObjectNode third = mapper.createObjectNode();
+		agent.decorate(third);
+		Assertions.assertThat(calls[0]).isEqualTo(2);
+		Assertions.assertThat(third.path("extra").asBoolean()).isTrue();
+
+		agent.invalidateStaticStatus();
+		agent.decorate(mapper.createObjectNode());
+		Assertions.assertThat(calls[0]).isEqualTo(3);
+	}
+
+	@Test
+	public void testDecoratorsSeeStaticStatus() {
+		MacGyverAgent agent = new MacGyverAgent();
+		ObjectMapper mapper = new ObjectMapper();
+		agent.addStatusDecorator(status -> {
+			status.put("originalOsName", status.path("osName").asText());
+			status.put("osName", "custom");
+			status.remove("javaHome");
+			status.put("sawCallerAttribute", status.has("requestId"));
+		});
+
+		for (int i = 0; i < 2; i++) {
+			ObjectNode status = mapper.createObjectNode();
+			status.put("requestId", "abc");
+			status.put("not valid", "x");
+			agent.decorate(status);
+
+			Assertions.assertThat(status.path("originalOsName").asText()).isEqualTo(System.getProperty("os.name"));
+			Assertions.assertThat(status.path("osName").asText()).isEqualTo("custom");
+			Assertions.assertThat(status.has("javaHome")).isFalse();
+			Assertions.assertThat(status.path("javaVersion").asText()).isEqualTo(System.getProperty("java.version"));
+			Assertions.assertThat(status.path("sawCallerAttribute").asBoolean()).isTrue();
+			Assertions.assertThat(status.path("requestId").asText()).isEqualTo("abc");
+			Assertions.assertThat(status.has("not valid")).isFalse();
+		}
+	}
+
+	@Test
+	public void testOverriddenDecorateIsCalled() {
+		MacGyverAgent agent = new MacGyverAgent();
+		AtomicInteger calls = new AtomicInteger();
+		agent.getStatusDecorators().clear();
+		agent.addStatusDecorator(new StandardDiscoveryDecorator(agent) {
+
+			@Override
+			public void decorate(ObjectNode n) {
+				super.decorate(n);
+				n.put("osName", "custom");
+				n.put("decorateCalls", calls.incrementAndGet());
+			}
+		});
+		Assertions.assertThat(MacGyverAgent.isSplit(agent.getStatusDecorators().get(0))).isFalse();
+		Assertions.assertThat(MacGyverAgent.isSplit(new StandardDiscoveryDecorator(agent))).isTrue();
+
+		for (int i = 1; i <= 2; i++) {
+			ObjectNode status = new ObjectMapper().createObjectNode();
+			agent.decorate(status);
+			Assertions.assertThat(status.path("decorateCalls").asInt()).isEqualTo(i);
+			Assertions.assertThat(status.path("osName").asText()).isEqualTo("custom");
+			Assertions.assertThat(status.path("javaVersion").asText()).isEqualTo(System.getProperty("java.version"));
+			Assertions.assertThat(status.has("timestamp")).isTrue();
+		}
+	}
+
+	@Test
+	public void testSchedulingBackpressure() {
+		MacGyverAgent agent = new MacGyverAgent().withSchedulingJitter(0.1);
+		long period = 60000;
+
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertThat(agent.getNextDelayMillis(period)).isBetween(54000L, 66000L);
+			Assertions.assertThat(agent.getInitialDelayMillis(0, period)).isBetween(0L, 6000L);
+		}
+
+		MemorySender throttled = new MemorySender();
+		MemorySender healthy = new MemorySender();
+		agent.withSender(throttled);
+		agent.withSender(healthy);
+		agent.applyBackpressure(throttled, -1);
+		agent.applyBackpressure(throttled, -1);
+		Assertions.assertThat(agent.getNextDelayMillis(period)).isBetween(216000L, 264000L);
+
+		agent.applyBackpressure(throttled, TimeUnit.HOURS.toMillis(1));
+		Assertions.assertThat(agent.getNextDelayMillis(period)).isGreaterThan(TimeUnit.MINUTES.toMillis(50));
+
+		for (int i = 0; i < 10; i++) {
+			agent.applyBackpressure(throttled, -1);
+		}
+		Assertions.assertThat(agent.getBackoffLevel()).isEqualTo(MacGyverAgent.MAX_BACKOFF_LEVEL);
+
+		// another sender's success doesn't lift the backoff
+		agent.retryAfterUntil = 0;
+		agent.deliver(healthy, new Envelope(MessageType.APP_CHECK_IN, new ObjectMapper().createObjectNode()));
+		Assertions.assertThat(agent.getBackoffLevel()).isEqualTo(MacGyverAgent.MAX_BACKOFF_LEVEL);
+
+		// a successful send to the throttled sender returns to the normal schedule
+		agent.reportCheckIn();
+		Assertions.assertThat(agent.getNextDelayMillis(period)).isBetween(54000L, 66000L);
+	}
+
+	@Test
+	public void testRetriesAndCircuitBreaker() throws InterruptedException {
+		CountDownLatch attempts = new CountDownLatch(3);
+		MemorySender failing = new MemorySender() {
+
+			@Override
+			public void sendCheckIn(ObjectNode n) {
+				attempts.countDown();
+				throw new AgentException("down");
+			}
+		};
+		MemorySender healthy = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent().withRetries(3, 10, 100, TimeUnit.MILLISECONDS)
+				.withCircuitBreaker(3, 1, TimeUnit.HOURS);
+		agent.withSender(failing);
+		agent.withSender(healthy);
+		try {
+			agent.reportCheckIn();
+			Assertions.assertThat(attempts.await(5, TimeUnit.SECONDS)).isTrue();
+			Assertions.assertThat(healthy.last().path(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE).asText()).isNotEmpty();
+
+			// the third failure opened the circuit, so nothing reaches the sender
+			SenderHealth health = agent.getSenderHealth(failing);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (health.getCircuitState() != SenderHealth.CircuitState.OPEN
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assertions.assertThat(health.getFailureCount()).isEqualTo(3);
+			Assertions.assertThat(health.getCircuitState()).isEqualTo(SenderHealth.CircuitState.OPEN);
+			agent.reportCheckIn();
+			Assertions.assertThat(health.getRejectedCount()).isEqualTo(1);
+			Assertions.assertThat(health.getFailureCount()).isEqualTo(3);
+
+			// the healthy sender is tracked separately
+			Assertions.assertThat(agent.getSenderHealth(healthy).getSuccessCount()).isEqualTo(2);
+			Assertions.assertThat(agent.getSenderHealth(healthy).getConsecutiveFailures()).isEqualTo(0);
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testFailedDeltaForcesKeyframe() throws IOException {
+		AtomicBoolean down = new AtomicBoolean(false);
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendThreadDump(ObjectNode n) {
+				if (down.get()) {
+					throw new AgentException("down");
+				}
+				super.sendThreadDump(n);
+			}
+		};
+		MacGyverAgent agent = new MacGyverAgent().withThreadDumpDeltas(100);
+		agent.withSender(sender);
+
+		agent.reportThreadDump();
+		Assertions.assertThat(threadDumpHeader(sender.last()).path("keyframe").asBoolean()).isTrue();
+		agent.reportThreadDump();
+		Assertions.assertThat(threadDumpHeader(sender.last()).path("keyframe").asBoolean()).isFalse();
+
+		down.set(true);
+		agent.reportThreadDump();
+		down.set(false);
+
+		// the receiver never got the base of the next delta
+		agent.reportThreadDump();
+		Assertions.assertThat(sender.eventList).hasSize(3);
+		Assertions.assertThat(threadDumpHeader(sender.last()).path("keyframe").asBoolean()).isTrue();
+	}
+
+	JsonNode threadDumpHeader(ObjectNode n) throws IOException {
+		byte[] gzip = Base64.getDecoder().decode(n.path(EncodedThreadDump.STRUCTURED_FIELD_NAME).asText());
+		return new ObjectMapper().readTree(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+	}
+
+	@Test
+	public void testIdempotencyKeyLeavesCallerDataAlone() {
+		MemorySender sender = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent().withRetries(3, 10, 100, TimeUnit.MILLISECONDS);
+		agent.withSender(sender);
+
+		ObjectNode event = new ObjectMapper().createObjectNode().put("message", "hello");
+		agent.reportAppEvent(event);
+		agent.reportAppEvent(event);
+		Assertions.assertThat(event.has(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE)).isFalse();
+		Assertions.assertThat(sender.eventList).hasSize(2);
+		String key = sender.eventList.get(0).path(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE).asText();
+		Assertions.assertThat(key).isNotEmpty();
+		Assertions.assertThat(sender.eventList.get(0).path("message").asText()).isEqualTo("hello");
+		// the same node reported twice is two messages
+		Assertions.assertThat(sender.last().path(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE).asText()).isNotEqualTo(key);
+	}
+
+	@Test
+	public void testFullCheckInUntilDelivered() {
+		AtomicBoolean down = new AtomicBoolean(true);
+		MemorySender flaky = new MemorySender() {
+
+			@Override
+			public void sendCheckIn(ObjectNode n) {
+				if (down.get()) {
+					throw new AgentException("down");
+				}
+				super.sendCheckIn(n);
+			}
+		};
+		MemorySender healthy = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent().withChangeAwareCheckIns(10);
+		agent.withSender(flaky);
+
+		// nothing accepted the first full check-in
+		agent.reportCheckIn();
+		down.set(false);
+		agent.reportCheckIn();
+		Assertions.assertThat(flaky.last().has(MacGyverAgent.HEARTBEAT_ATTRIBUTE)).isFalse();
+		agent.reportCheckIn();
+		Assertions.assertThat(flaky.last().path(MacGyverAgent.HEARTBEAT_ATTRIBUTE).asBoolean()).isTrue();
+
+		// one sender missing a full check-in is enough to send the next one in full
+		agent.withSender(healthy);
+		agent.requestFullCheckIn();
+		down.set(true);
+		agent.reportCheckIn();
+		Assertions.assertThat(healthy.last().has(MacGyverAgent.HEARTBEAT_ATTRIBUTE)).isFalse();
+		down.set(false);
+		agent.reportCheckIn();
+		Assertions.assertThat(flaky.last().has(MacGyverAgent.HEARTBEAT_ATTRIBUTE)).isFalse();
+		Assertions.assertThat(healthy.last().has(MacGyverAgent.HEARTBEAT_ATTRIBUTE)).isFalse();
+		agent.reportCheckIn();
+		Assertions.assertThat(flaky.last().path(MacGyverAgent.HEARTBEAT_ATTRIBUTE).asBoolean()).isTrue();
+	}
+
+	@Test
+	public void testSpool() throws IOException {
+		AtomicBoolean down = new AtomicBoolean(true);
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendAppEvent(ObjectNode n) {
+				if (down.get()) {
+					throw new AgentException("down");
+				}
+				super.sendAppEvent(n);
+			}
+
+			@Override
+			public void sendCheckIn(ObjectNode n) {
+				if (down.get()) {
+					throw new AgentException("down");
+				}
+				super.sendCheckIn(n);
+			}
+
+			@Override
+			public String getSenderId() {
+				return "memory";
+			}
+		};
+		File dir = folder.newFolder();
+		MacGyverAgent agent = new MacGyverAgent().withSpool(dir, 1024 * 1024, 1, TimeUnit.HOURS, 1);
+		agent.withSender(sender);
+
+		agent.reportCheckIn();
+		for (int i = 0; i < 3; i++) {
+			agent.reportAppEvent(new ObjectMapper().createObjectNode().put("message", "event " + i));
+		}
+		Assertions.assertThat(agent.getSpool(sender).getPendingCount()).isEqualTo(3);
+
+		// nothing is replayed until the sender has recovered
+		agent.replaySpools();
+		Assertions.assertThat(sender.eventList).isEmpty();
+		down.set(false);
+		agent.reportCheckIn();
+		agent.replaySpools();
+		agent.replaySpools();
+		Assertions.assertThat(sender.eventList).hasSize(3);
+		Assertions.assertThat(sender.eventList.get(1).path("message").asText()).isEqualTo("event 0");
+		Assertions.assertThat(sender.eventList.get(2).path("message").asText()).isEqualTo("event 1");
+		agent.stop();
+
+		// a stopped agent doesn't open its spools again
+		Assertions.assertThat(agent.getSpool(sender)).isNull();
+
+		// the rest survives a restart, and goes to the same sender even if
+		// another one is added before it
+		MemorySender other = new MemorySender() {
+
+			@Override
+			public String getSenderId() {
+				return "other";
+			}
+		};
+		MemorySender next = new MemorySender() {
+
+			@Override
+			public String getSenderId() {
+				return "memory";
+			}
+		};
+		agent = new MacGyverAgent().withSpool(dir, 1024 * 1024, 1, TimeUnit.HOURS, 10);
+		agent.withSender(other);
+		agent.withSender(next);
+		agent.getSpool(other);
+		agent.getSpool(next);
+		agent.replaySpools();
+		Assertions.assertThat(other.eventList).isEmpty();
+		Assertions.assertThat(next.eventList).hasSize(1);
+		Assertions.assertThat(next.last().path("message").asText()).isEqualTo("event 2");
+	}
+
+	@Test
+	public void testPendingRetriesAreSpooledOnStop() throws IOException {
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendAppEvent(ObjectNode n) {
+				throw new AgentException("down");
+			}
+
+			@Override
+			public String getSenderId() {
+				return "memory";
+			}
+		};
+		File dir = folder.newFolder();
+		MacGyverAgent agent = new MacGyverAgent().withRetries(3, 1, 1, TimeUnit.HOURS)
+				.withSpool(dir, 1024 * 1024, 1, TimeUnit.HOURS, 10);
+		agent.withSender(sender);
+		agent.reportAppEvent(new ObjectMapper().createObjectNode().put("message", "retry me"));
+		Assertions.assertThat(agent.getSpool(sender).getPendingCount()).isEqualTo(0);
+		agent.stop();
+
+		MemorySender next = new MemorySender() {
+
+			@Override
+			public String getSenderId() {
+				return "memory";
+			}
+		};
+		agent = new MacGyverAgent().withSpool(dir, 1024 * 1024, 1, TimeUnit.HOURS, 10);
+		agent.withSender(next);
+		agent.getSpool(next);
+		agent.replaySpools();
+		Assertions.assertThat(next.eventList).hasSize(1);
+		Assertions.assertThat(next.last().path("message").asText()).isEqualTo("retry me");
+	}
+
+	@Test
+	public void testRetryToFullQueueIsSpooled() throws IOException, InterruptedException {
+		CountDownLatch failed = new CountDownLatch(1);
+		CountDownLatch blocking = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendAppEvent(ObjectNode n) {
+				String message = n.path("message").asText();
+				if (message.equals("fail")) {
+					failed.countDown();
+					throw new AgentException("down");
+				}
+				if (message.equals("block")) {
+					blocking.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		MacGyverAgent agent = new MacGyverAgent().withSenderIsolation(1)
+				.withRetries(3, 300, 300, TimeUnit.MILLISECONDS)
+				.withSpool(folder.newFolder(), 1024 * 1024, 1, TimeUnit.HOURS, 10);
+		agent.withSender(sender);
+		ObjectMapper mapper = new ObjectMapper();
+		try {
+			agent.reportAppEvent(mapper.createObjectNode().put("message", "fail"));
+			Assertions.assertThat(failed.await(5, TimeUnit.SECONDS)).isTrue();
+			agent.reportAppEvent(mapper.createObjectNode().put("message", "block"));
+			Assertions.assertThat(blocking.await(5, TimeUnit.SECONDS)).isTrue();
+			agent.reportAppEvent(mapper.createObjectNode().put("message", "queued"));
+
+			// the retry finds the queue full, so it counts as failed and is spooled
+			MessageSpool spool = agent.getSpool(sender);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (spool.getPendingCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assertions.assertThat(spool.getPendingCount()).isEqualTo(1);
+			Assertions.assertThat(agent.getSenderHealth(sender).getFailureCount()).isEqualTo(2);
+		} finally {
+			release.countDown();
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testSpoolDirectoryName() {
+		MemorySender first = new MemorySender();
+		MemorySender second = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent();
+		agent.withSender(first);
+		agent.withSender(second);
+		Assertions.assertThat(agent.getSpoolDirectoryName(first)).matches("sender-io.macgyver.agent.MemorySender-[0-9a-f]{8}");
+		Assertions.assertThat(agent.getSpoolDirectoryName(second)).isEqualTo(agent.getSpoolDirectoryName(first) + "-1");
+
+		Sender http = new io.macgyver.agent.sender.http.HttpAgentSender().withBaseUrl("https://example.com:8443/");
+		Assertions.assertThat(agent.getSpoolDirectoryName(http)).matches("sender-http_https_example.com_8443-[0-9a-f]{8}");
+	}
+
+	@Test
+	public void testReportAppEvent() {
+		MemorySender sender = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent();
+		agent.withSender(sender);
+
+		AppEvent event = new AppEvent();
+		event.withEventType(MacGyverAgent.AppEventType.STARTUP_COMPLETE).withMessage("started");
+		agent.reportAppEvent(event);
+		event.clear().withMessage("reused");
+		agent.reportAppEvent(event);
+
+		Assertions.assertThat(sender.eventList).hasSize(2);
+		Assertions.assertThat(sender.eventList.get(0).path("eventType").asText()).isEqualTo("STARTUP_COMPLETE");
+		Assertions.assertThat(sender.eventList.get(0).path("message").asText()).isEqualTo("started");
+		Assertions.assertThat(sender.eventList.get(1).has("eventType")).isFalse();
+		Assertions.assertThat(sender.eventList.get(1).path("message").asText()).isEqualTo("reused");
+	}
+
+	@Test
+	public void testCircuitHalfOpen() throws InterruptedException {
+		SenderHealth health = new SenderHealth(2, 50);
+		Assertions.assertThat(health.recordFailure(new AgentException("x"))).isFalse();
+		Assertions.assertThat(health.recordFailure(new AgentException("x"))).isTrue();
+		Assertions.assertThat(health.allowRequest()).isFalse();
+
+		Thread.sleep(60);
+		Assertions.assertThat(health.getCircuitState()).isEqualTo(SenderHealth.CircuitState.HALF_OPEN);
+		Assertions.assertThat(health.allowRequest()).isTrue();
+		Assertions.assertThat(health.allowRequest()).isFalse();
+
+		// a failed trial opens the circuit again
+		Assertions.assertThat(health.recordFailure(new AgentException("x"))).isTrue();
+		Assertions.assertThat(health.allowRequest()).isFalse();
+
+		Thread.sleep(60);
+		Assertions.assertThat(health.allowRequest()).isTrue();
+		health.recordSuccess();
+		Assertions.assertThat(health.getCircuitState()).isEqualTo(SenderHealth.CircuitState.CLOSED);
+		Assertions.assertThat(health.allowRequest()).isTrue();
+	}
+
+	@Test
+	public void testRetryDelay() {
+		MacGyverAgent agent = new MacGyverAgent().withRetries(10, 100, 1000, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertThat(agent.getRetryDelayMillis(1)).isBetween(50L, 100L);
+			Assertions.assertThat(agent.getRetryDelayMillis(3)).isBetween(200L, 400L);
+			Assertions.assertThat(agent.getRetryDelayMillis(9)).isBetween(500L, 1000L);
+		}
+	}
+
 	@Test
 	public void testIt() {
 
@@ -71,6 +592,100 @@ public class MacGyverAgentTest {
 		Assertions.assertThat(v.get("javaHome").asText(null)).isNotNull();
 	}
 
+	@Test
+	public void testSenderIsolation() throws InterruptedException {
+		CountDownLatch interrupted = new CountDownLatch(1);
+		CountDownLatch delivered = new CountDownLatch(1);
+
+		MemorySender hungSender = new MemorySender() {
+
+			@Override
+			public void sendCheckIn(ObjectNode n) {
+				try {
+					Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+		};
+		MemorySender goodSender = new MemorySender() {
+
+			@Override
+			public void sendCheckIn(ObjectNode n) {
+				super.sendCheckIn(n);
+				delivered.countDown();
+			}
+		};
+
+		MacGyverAgent agent = new MacGyverAgent().withSenderIsolation(10)
+				.withSendDeadline(MessageType.APP_CHECK_IN, 200, TimeUnit.MILLISECONDS);
+		agent.withSender(hungSender).withSender(goodSender);
+		try {
+			long t0 = System.currentTimeMillis();
+			agent.reportCheckIn();
+			Assertions.assertThat(System.currentTimeMillis() - t0).isLessThan(1000);
+
+			Assertions.assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+			Assertions.assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testDeadlineExpiredInQueueIsRetried() throws InterruptedException {
+		CountDownLatch delivered = new CountDownLatch(1);
+		MemorySender sender = new MemorySender() {
+
+			@Override
+			public void sendAppEvent(ObjectNode n) {
+				if (n.path("message").asText().equals("slow")) {
+					long until = System.currentTimeMillis() + 250;
+					while (System.currentTimeMillis() < until) {
+						// ignores the interrupt, like a hung socket write
+						Thread.interrupted();
+					}
+					return;
+				}
+				super.sendAppEvent(n);
+				delivered.countDown();
+			}
+		};
+
+		MacGyverAgent agent = new MacGyverAgent().withSenderIsolation(10)
+				.withSendDeadline(MessageType.APP_EVENT, 100, TimeUnit.MILLISECONDS)
+				.withRetries(2, 500, 500, TimeUnit.MILLISECONDS);
+		agent.withSender(sender);
+		try {
+			agent.reportAppEvent(new AppEventBuilder().withMessage("slow"));
+			agent.reportAppEvent(new AppEventBuilder().withMessage("queued"));
+
+			Assertions.assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+			Assertions.assertThat(sender.last().path("message").asText()).isEqualTo("queued");
+			Assertions.assertThat(agent.getSenderHealth(sender).getFailureCount()).isEqualTo(1);
+			Assertions.assertThat(agent.getSenderHealth(sender).getLastError()).contains("deadline");
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testThreadDump() throws IOException {
+		MacGyverAgent agent = new MacGyverAgent();
+		MemorySender sender = new MemorySender();
+		agent.withSender(sender);
+
+		agent.reportThreadDump();
+
+		ObjectNode v = sender.last();
+		Assertions.assertThat(v.path("host").asText()).isEqualTo(MacGyverAgent.getUnqualifiedHostname());
+
+		GZIPInputStream gis = new GZIPInputStream(
+				new ByteArrayInputStream(Base64.getDecoder().decode(v.path("threadDumpGzip").asText())));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(gis));
+		Assertions.assertThat(reader.lines().anyMatch(line -> line.contains("state=RUNNABLE"))).isTrue();
+	}
+
 	@Test
 	public void testMapper() {
 		ObjectMapper mapper = new ObjectMapper();
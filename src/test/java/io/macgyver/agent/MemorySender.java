@@ -32,6 +32,11 @@ public class MemorySender implements Sender {
 		eventList.add(n);
 	}
 
+	@Override
+	public void sendStackProfile(ObjectNode n) {
+		eventList.add(n);
+	}
+
 	ObjectNode last() {
 		return eventList.get(eventList.size()-1);
 	}
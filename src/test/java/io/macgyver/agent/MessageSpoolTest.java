@@ -0,0 +1,125 @@
+package io.macgyver.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.macgyver.agent.MacGyverAgent.MessageType;
+
+public class MessageSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static String replayOne(MessageSpool spool) {
+		MessageSpool.Record r = spool.peek();
+		if (r == null) {
+			return null;
+		}
+		spool.commit(r);
+		return new String(r.payload, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testReplayInOrderAcrossRestarts() throws IOException {
+		File dir = folder.newFolder();
+		MessageSpool spool = new MessageSpool(dir, 1024 * 1024, 0);
+		for (int i = 0; i < 10; i++) {
+			Assertions.assertThat(spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), bytes("m" + i)))
+					.isTrue();
+		}
+		Assertions.assertThat(replayOne(spool)).isEqualTo("m0");
+		Assertions.assertThat(replayOne(spool)).isEqualTo("m1");
+
+		// a peeked but uncommitted record is replayed again
+		Assertions.assertThat(new String(spool.peek().payload, StandardCharsets.UTF_8)).isEqualTo("m2");
+		spool.close();
+
+		spool = new MessageSpool(dir, 1024 * 1024, 0);
+		Assertions.assertThat(spool.getPendingCount()).isEqualTo(8);
+		MessageSpool.Record r = spool.peek();
+		Assertions.assertThat(r.type).isEqualTo(MessageType.APP_EVENT);
+		Assertions.assertThat(replayOne(spool)).isEqualTo("m2");
+		spool.append(MessageType.APP_CHECK_IN, System.currentTimeMillis(), bytes("m10"));
+		for (int i = 3; i <= 10; i++) {
+			Assertions.assertThat(replayOne(spool)).isEqualTo("m" + i);
+		}
+		Assertions.assertThat(replayOne(spool)).isNull();
+		Assertions.assertThat(spool.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testCapDropsOldestSegment() throws IOException {
+		File dir = folder.newFolder();
+		MessageSpool spool = new MessageSpool(dir, 2 * MessageSpool.MIN_SEGMENT_BYTES, 0);
+		byte[] payload = new byte[1000];
+		for (int i = 0; i < 100; i++) {
+			spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), payload);
+		}
+		Assertions.assertThat(dir.listFiles()).hasSize(2);
+		Assertions.assertThat(spool.getDroppedCount()).isGreaterThan(0);
+		Assertions.assertThat(spool.getPendingCount() + spool.getDroppedCount()).isEqualTo(100);
+
+		Assertions.assertThat(spool.append(MessageType.APP_EVENT, 0, new byte[MessageSpool.MIN_SEGMENT_BYTES]))
+				.isFalse();
+	}
+
+	@Test
+	public void testRetention() throws IOException {
+		MessageSpool spool = new MessageSpool(folder.newFolder(), 1024 * 1024, TimeUnit.HOURS.toMillis(1));
+		spool.append(MessageType.APP_EVENT, System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), bytes("old"));
+		spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), bytes("new"));
+		Assertions.assertThat(replayOne(spool)).isEqualTo("new");
+		Assertions.assertThat(spool.getExpiredCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		File dir = folder.newFolder();
+		MessageSpool spool = new MessageSpool(dir, 1024 * 1024, 0);
+		spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), bytes("whole"));
+		spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), bytes("torn"));
+		spool.close();
+
+		// corrupt the payload of the second record
+		try (RandomAccessFile f = new RandomAccessFile(dir.listFiles()[0], "rw")) {
+			f.seek(MessageSpool.SEGMENT_HEADER_BYTES + MessageSpool.RECORD_HEADER_BYTES * 2 + 5);
+			f.write('X');
+		}
+		spool = new MessageSpool(dir, 1024 * 1024, 0);
+		Assertions.assertThat(spool.getPendingCount()).isEqualTo(1);
+		spool.append(MessageType.APP_EVENT, System.currentTimeMillis(), bytes("next"));
+		Assertions.assertThat(replayOne(spool)).isEqualTo("whole");
+		Assertions.assertThat(replayOne(spool)).isEqualTo("next");
+	}
+
+	@Test
+	public void testTypeCodes() throws IOException {
+		for (MessageType type : MessageType.values()) {
+			Assertions.assertThat(MessageSpool.fromCode(MessageSpool.toCode(type))).isEqualTo(type);
+		}
+		Assertions.assertThat(MessageSpool.fromCode(MessageType.values().length)).isNull();
+
+		// the code on disk is fixed, whatever the order of the enum
+		File dir = folder.newFolder();
+		MessageSpool spool = new MessageSpool(dir, 1024 * 1024, 0);
+		spool.append(MessageType.STACK_PROFILE, System.currentTimeMillis(), bytes("p"));
+		spool.close();
+		try (RandomAccessFile f = new RandomAccessFile(new File(dir, String.format("%016d.seg", 0)), "r")) {
+			f.seek(MessageSpool.SEGMENT_HEADER_BYTES + 4);
+			Assertions.assertThat(f.readByte()).isEqualTo((byte) 4);
+		}
+		Assertions.assertThat(new MessageSpool(dir, 1024 * 1024, 0).peek().type).isEqualTo(MessageType.STACK_PROFILE);
+	}
+}
@@ -0,0 +1,106 @@
+package io.macgyver.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class StackProfilerTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	volatile boolean spinning = true;
+	Thread spinner;
+
+	@Before
+	public void startSpinner() {
+		spinner = new Thread(() -> spin(), "test-spinner");
+		spinner.setDaemon(true);
+		spinner.start();
+	}
+
+	@After
+	public void stopSpinner() throws InterruptedException {
+		spinning = false;
+		spinner.join();
+	}
+
+	long spin() {
+		long n = 0;
+		while (spinning) {
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testCollapsedStacks() {
+		StackProfiler profiler = new StackProfiler(ManagementFactory.getThreadMXBean(), 100, 64, 100);
+		for (int i = 0; i < 10; i++) {
+			profiler.sample();
+		}
+
+		ObjectNode n = mapper.createObjectNode();
+		profiler.report(n);
+
+		Assertions.assertThat(n.path("sampleCount").asLong()).isGreaterThanOrEqualTo(10);
+		Assertions.assertThat(n.path("samplePeriodMicros").asLong()).isEqualTo(10000);
+		String spinLine = null;
+		for (String line : n.path("collapsedStacks").asText().split("\n")) {
+			Assertions.assertThat(line).matches("[^ ]+ \\d+");
+			if (line.contains(StackProfilerTest.class.getName() + ".spin ")) {
+				spinLine = line;
+			}
+		}
+		Assertions.assertThat(spinLine).startsWith("java.lang.Thread.run;");
+		Assertions.assertThat(Long.parseLong(spinLine.substring(spinLine.lastIndexOf(' ') + 1))).isEqualTo(10);
+
+		// a new interval starts with each report
+		ObjectNode next = mapper.createObjectNode();
+		profiler.report(next);
+		Assertions.assertThat(next.path("sampleCount").asLong()).isEqualTo(0);
+		Assertions.assertThat(next.path("collapsedStacks").asText()).isEmpty();
+	}
+
+	@Test
+	public void testBounded() {
+		StackProfiler profiler = new StackProfiler(ManagementFactory.getThreadMXBean(), 100, 64, 1);
+		for (int i = 0; i < 5; i++) {
+			profiler.sample();
+		}
+		Assertions.assertThat(profiler.counts).hasSize(1);
+
+		ObjectNode n = mapper.createObjectNode();
+		profiler.report(n);
+		Assertions.assertThat(n.path("collapsedStacks").asText().split("\n")).hasSize(1);
+		if (n.path("sampleCount").asLong() > 5) {
+			Assertions.assertThat(n.path("droppedSampleCount").asLong()).isGreaterThan(0);
+		}
+	}
+
+	@Test
+	public void testAgent() throws InterruptedException {
+		MemorySender sender = new MemorySender();
+		MacGyverAgent agent = new MacGyverAgent().withSender(sender).withStackProfiling(100, 200,
+				TimeUnit.MILLISECONDS);
+		agent.withCheckInInterval(0, TimeUnit.SECONDS);
+		agent.withThreadDumpDisabled();
+		agent.start();
+		try {
+			Thread.sleep(500);
+		} finally {
+			agent.stop();
+		}
+
+		Assertions.assertThat(sender.eventList).isNotEmpty();
+		ObjectNode profile = sender.eventList.get(0);
+		Assertions.assertThat(profile.path("sampleCount").asLong()).isGreaterThan(0);
+		Assertions.assertThat(profile.path("collapsedStacks").asText()).contains(".spin ");
+	}
+}
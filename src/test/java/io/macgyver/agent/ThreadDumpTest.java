@@ -0,0 +1,258 @@
+package io.macgyver.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ThreadDumpTest {
+
+	static final int POOL_SIZE = 20;
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	CountDownLatch release = new CountDownLatch(1);
+	List<Thread> pool = new ArrayList<>();
+
+	@Before
+	public void startPool() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++) {
+			Thread t = new Thread(() -> {
+				started.countDown();
+				AsyncDispatcherTest.awaitQuietly(release);
+			}, "test-pool-" + i);
+			t.setDaemon(true);
+			t.start();
+			pool.add(t);
+		}
+		started.await();
+		// let every thread reach the same wait
+		Thread.sleep(100);
+	}
+
+	@After
+	public void stopPool() throws InterruptedException {
+		release.countDown();
+		for (Thread t : pool) {
+			t.join();
+		}
+	}
+
+	@Test
+	public void testText() {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		StringWriter w = new StringWriter();
+		dump.dump(w);
+
+		Assertions.assertThat(w.toString()).contains("test-pool-7 id=").contains("state=RUNNABLE");
+	}
+
+	@Test
+	public void testStructured() throws IOException {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		ThreadInfo[] threads = dump.capture();
+
+		JsonNode n = structured(dump, threads);
+
+		Assertions.assertThat(n.path("threads").size()).isEqualTo(threads.length);
+
+		JsonNode frames = n.path("frames");
+		JsonNode classes = n.path("classes");
+
+		int stackEntries = 0;
+		List<JsonNode> poolThreads = new ArrayList<>();
+		for (JsonNode t : n.path("threads")) {
+			for (JsonNode frame : t.path("stack")) {
+				Assertions.assertThat(frame.asInt()).isBetween(0, frames.size() - 1);
+				stackEntries++;
+			}
+			if (t.path("name").asText().startsWith("test-pool-")) {
+				poolThreads.add(t);
+			}
+		}
+		Assertions.assertThat(poolThreads).hasSize(POOL_SIZE);
+		Assertions.assertThat(frames.size()).isLessThan(stackEntries);
+
+		// identical stacks share the same frames
+		Assertions.assertThat(poolThreads.get(0).path("stack")).isEqualTo(poolThreads.get(1).path("stack"));
+		Assertions.assertThat(poolThreads.get(0).path("state").asText()).isIn("WAITING", "TIMED_WAITING");
+
+		JsonNode top = frames.get(poolThreads.get(0).path("stack").get(0).asInt());
+		Assertions.assertThat(classes.get(top.get(0).asInt()).asText()).isNotEmpty();
+		Assertions.assertThat(top.get(1).asText()).isNotEmpty();
+	}
+
+	@Test
+	public void testEncodedStructured() throws IOException {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		EncodedThreadDump encoded = new EncodedThreadDump(dump, dump.capture(), ThreadDump.Format.STRUCTURED);
+
+		Assertions.assertThat(encoded.getFieldName()).isEqualTo("threadDumpStructuredGzip");
+
+		JsonNode n = mapper.readTree(
+				new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded.asString()))));
+		Assertions.assertThat(n.path("threads").size()).isGreaterThan(POOL_SIZE);
+	}
+
+	@Test
+	public void testGroupedText() {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean()).withGrouping(true);
+		StringWriter w = new StringWriter();
+		dump.dump(w);
+
+		String text = w.toString();
+		Assertions.assertThat(text).startsWith(POOL_SIZE + " threads with state=");
+		Assertions.assertThat(text.split("\\n\\n")[0]).contains("test-pool-0 id=", "test-pool-19 id=");
+		Assertions.assertThat(text.indexOf("test-pool-0 id=")).isEqualTo(text.lastIndexOf("test-pool-0 id="));
+	}
+
+	@Test
+	public void testGroupedStructured() throws IOException {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean()).withGrouping(true);
+		ThreadInfo[] threads = dump.capture();
+
+		JsonNode n = structured(dump, threads);
+
+		Assertions.assertThat(n.has("threads")).isFalse();
+		JsonNode groups = n.path("groups");
+		JsonNode largest = groups.get(0);
+		Assertions.assertThat(largest.path("count").asInt()).isEqualTo(POOL_SIZE);
+		Assertions.assertThat(largest.path("threads").size()).isEqualTo(POOL_SIZE);
+		Assertions.assertThat(largest.path("threads").get(0).path("name").asText()).startsWith("test-pool-");
+		Assertions.assertThat(largest.path("stack").size()).isGreaterThan(0);
+
+		int total = 0;
+		int previous = Integer.MAX_VALUE;
+		for (JsonNode group : groups) {
+			Assertions.assertThat(group.path("count").asInt()).isLessThanOrEqualTo(previous);
+			previous = group.path("count").asInt();
+			total += previous;
+		}
+		Assertions.assertThat(total).isEqualTo(threads.length);
+	}
+
+	@Test
+	public void testCaptureOptions() {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean())
+				.withThreadNameFilter(Pattern.compile("test-pool-.*"))
+				.withThreadStateFilter(Thread.State.WAITING, Thread.State.TIMED_WAITING)
+				.withMaxStackDepth(2)
+				.withCaptureBatchSize(7);
+		ThreadInfo[] threads = dump.capture();
+
+		Assertions.assertThat(threads).hasSize(POOL_SIZE);
+		for (ThreadInfo t : threads) {
+			Assertions.assertThat(t.getStackTrace().length).isLessThanOrEqualTo(2);
+		}
+		Assertions.assertThat(dump.getLastCaptureTime(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+		Assertions.assertThat(dump.getLastLongestPause(TimeUnit.NANOSECONDS))
+				.isLessThanOrEqualTo(dump.getLastCaptureTime(TimeUnit.NANOSECONDS));
+
+		dump.withThreadStateFilter(Thread.State.BLOCKED);
+		Assertions.assertThat(dump.capture()).isEmpty();
+	}
+
+	@Test
+	public void testCutStacks() {
+		// the Java 8 path for a depth limit together with locks
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean()).withMaxStackDepth(2);
+		long[] ids = ManagementFactory.getThreadMXBean().getAllThreadIds();
+		ThreadInfo[] threads = dump.getThreadInfoWithCutStacks(ids);
+
+		Assertions.assertThat(threads).hasSize(ids.length);
+		boolean cut = false;
+		for (ThreadInfo t : threads) {
+			if (t == null) {
+				continue;
+			}
+			Assertions.assertThat(t.getStackTrace().length).isLessThanOrEqualTo(2);
+			for (MonitorInfo m : t.getLockedMonitors()) {
+				Assertions.assertThat(m.getLockedStackDepth()).isLessThan(2);
+			}
+			cut |= t.getThreadName().startsWith("test-pool-");
+		}
+		Assertions.assertThat(cut).isTrue();
+	}
+
+	@Test
+	public void testDeltas() throws InterruptedException {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		ThreadDumpDeltaTracker tracker = new ThreadDumpDeltaTracker(3);
+
+		ThreadDumpDeltaTracker.Delta first = tracker.next(dump.capture());
+		Assertions.assertThat(first.keyframe).isTrue();
+		Assertions.assertThat(first.baseDumpId).isNull();
+		Assertions.assertThat(names(first.threads)).contains("test-pool-0", "test-pool-19");
+
+		Thread vanishing = pool.remove(0);
+		long vanishingId = vanishing.getId();
+		vanishing.interrupt();
+		vanishing.join();
+
+		ThreadDumpDeltaTracker.Delta second = tracker.next(dump.capture());
+		Assertions.assertThat(second.keyframe).isFalse();
+		Assertions.assertThat(second.baseDumpId).isEqualTo(first.dumpId);
+		Assertions.assertThat(names(second.threads)).doesNotContain("test-pool-1", "test-pool-19");
+		Assertions.assertThat(second.vanished).contains(vanishingId);
+
+		ThreadDumpDeltaTracker.Delta third = tracker.next(dump.capture());
+		Assertions.assertThat(third.keyframe).isFalse();
+		Assertions.assertThat(third.baseDumpId).isEqualTo(second.dumpId);
+		Assertions.assertThat(third.vanished).isEmpty();
+
+		ThreadDumpDeltaTracker.Delta fourth = tracker.next(dump.capture());
+		Assertions.assertThat(fourth.keyframe).isTrue();
+		Assertions.assertThat(names(fourth.threads)).contains("test-pool-1", "test-pool-19");
+	}
+
+	@Test
+	public void testRequestedKeyframe() {
+		ThreadDump dump = new ThreadDump(ManagementFactory.getThreadMXBean());
+		ThreadDumpDeltaTracker tracker = new ThreadDumpDeltaTracker(3);
+
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isTrue();
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isFalse();
+		tracker.requestKeyframe();
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isTrue();
+
+		// the interval starts again from the requested keyframe
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isFalse();
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isFalse();
+		Assertions.assertThat(tracker.next(dump.capture()).keyframe).isTrue();
+	}
+
+	static List<String> names(ThreadInfo[] threads) {
+		List<String> names = new ArrayList<>();
+		for (ThreadInfo t : threads) {
+			names.add(t.getThreadName());
+		}
+		return names;
+	}
+
+	JsonNode structured(ThreadDump dump, ThreadInfo[] threads) throws IOException {
+		StringWriter w = new StringWriter();
+		JsonGenerator gen = mapper.getFactory().createGenerator(w);
+		dump.dumpStructured(threads, gen);
+		gen.close();
+		return mapper.readTree(w.toString());
+	}
+}
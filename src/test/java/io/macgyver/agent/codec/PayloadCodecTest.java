@@ -0,0 +1,104 @@
+package io.macgyver.agent.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.luben.zstd.ZstdInputStream;
+
+public class PayloadCodecTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testGzip() throws IOException {
+		byte[] json = checkIn(1);
+		byte[] encoded = encode(new GzipCodec(), json);
+
+		Assertions.assertThat(readFully(new GZIPInputStream(new ByteArrayInputStream(encoded)))).isEqualTo(json);
+	}
+
+	@Test
+	public void testDeflate() throws IOException {
+		byte[] json = checkIn(1);
+		byte[] encoded = encode(new DeflateCodec(), json);
+
+		Assertions.assertThat(readFully(new InflaterInputStream(new ByteArrayInputStream(encoded)))).isEqualTo(json);
+	}
+
+	@Test
+	public void testZstdDictionary() throws IOException {
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			samples.add(checkIn(i));
+		}
+		byte[] dictionary = ZstdCodec.trainDictionary(samples, 4096);
+
+		byte[] json = checkIn(5000);
+		byte[] plain = encode(new ZstdCodec(), json);
+		byte[] withDictionary = encode(new ZstdCodec().withDictionary(dictionary), json);
+
+		Assertions.assertThat(withDictionary.length).isLessThan(plain.length);
+
+		ZstdInputStream in = new ZstdInputStream(new ByteArrayInputStream(withDictionary));
+		in.setDict(dictionary);
+		Assertions.assertThat(readFully(in)).isEqualTo(json);
+	}
+
+	@Test
+	public void testTargetLeftOpen() throws IOException {
+		ByteArrayOutputStream target = new ByteArrayOutputStream() {
+
+			@Override
+			public void close() throws IOException {
+				throw new IOException("target closed");
+			}
+		};
+		try (OutputStream out = new GzipCodec().encode(target)) {
+			out.write(checkIn(1));
+		}
+		Assertions.assertThat(target.size()).isGreaterThan(0);
+	}
+
+	byte[] checkIn(int i) throws IOException {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("host", "app" + i);
+		n.put("ip", "10.0." + (i / 250) + "." + (i % 250));
+		n.put("appId", "payments-service");
+		n.put("version", "1.145." + (i % 7));
+		n.put("environment", "prod");
+		n.put("osName", "Linux");
+		n.put("javaVersion", "1.8.0_131");
+		n.put("javaHome", "/usr/lib/jvm/java-8-oracle/jre");
+		return mapper.writeValueAsBytes(n);
+	}
+
+	static byte[] encode(PayloadCodec codec, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (OutputStream out = codec.encode(baos)) {
+			out.write(data);
+		}
+		return baos.toByteArray();
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			baos.write(buffer, 0, count);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,112 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.agent.MacGyverAgent;
+
+public class JvmMemoryDecoratorTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	List<byte[]> garbage = new ArrayList<>();
+
+	@Test
+	public void testAttributeName() {
+		Assertions.assertThat(JvmMemoryDecorator.toAttributeName("PS Eden Space")).isEqualTo("PSEdenSpace");
+		Assertions.assertThat(JvmMemoryDecorator.toAttributeName("CodeHeap 'non-nmethods'"))
+				.isEqualTo("CodeHeapNonNmethods");
+	}
+
+	@Test
+	public void testDecorate() {
+		JvmMemoryDecorator decorator = new JvmMemoryDecorator(0, TimeUnit.MILLISECONDS);
+
+		ObjectNode first = mapper.createObjectNode();
+		decorator.decorate(first);
+		Assertions.assertThat(first.path("heapUsed").asLong()).isGreaterThan(0);
+		Assertions.assertThat(first.has("allocationRateBytesPerSec")).isFalse();
+
+		for (int i = 0; i < 1000; i++) {
+			garbage.add(new byte[1024]);
+		}
+
+		ObjectNode second = mapper.createObjectNode();
+		decorator.decorate(second);
+
+		boolean gcCount = false;
+		Iterator<String> names = second.fieldNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			Assertions.assertThat(second.get(name).isNumber()).as(name).isTrue();
+			gcCount |= name.startsWith("gc") && name.endsWith("CountDelta");
+		}
+		Assertions.assertThat(gcCount).isTrue();
+
+		// everything survives the agent's attribute scrubbing
+		MacGyverAgent agent = new MacGyverAgent();
+		agent.getStatusDecorators().clear();
+		agent.getStatusDecorators().add(decorator);
+		ObjectNode status = mapper.createObjectNode();
+		agent.decorate(status);
+		Assertions.assertThat(status.size()).isEqualTo(second.size());
+	}
+
+	@Test
+	public void testDeltasCoverWholeInterval() throws InterruptedException {
+		AtomicLong count = new AtomicLong();
+		GarbageCollectorMXBean collector = (GarbageCollectorMXBean) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { GarbageCollectorMXBean.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getName":
+						return "Test";
+					case "getCollectionCount":
+						return count.get();
+					case "getCollectionTime":
+						return count.get() * 10;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		JvmMemoryDecorator decorator = new JvmMemoryDecorator(ManagementFactory.getMemoryMXBean(),
+				Collections.singletonList(collector), Collections.emptyList(), 200, TimeUnit.MILLISECONDS);
+
+		ObjectNode status = mapper.createObjectNode();
+		decorator.decorate(status);
+		Assertions.assertThat(status.has("gcTestCountDelta")).isFalse();
+
+		count.set(2);
+		Thread.sleep(250);
+		ObjectNode checkIn = mapper.createObjectNode();
+		decorator.decorate(checkIn);
+		Assertions.assertThat(checkIn.path("gcTestCountDelta").asLong()).isEqualTo(2);
+
+		// another message within the interval repeats the last interval's deltas
+		count.set(5);
+		ObjectNode event = mapper.createObjectNode();
+		decorator.decorate(event);
+		Assertions.assertThat(event.path("gcTestCount").asLong()).isEqualTo(5);
+		Assertions.assertThat(event.path("gcTestCountDelta").asLong()).isEqualTo(2);
+
+		// and doesn't cut the next interval short
+		count.set(6);
+		Thread.sleep(250);
+		checkIn = mapper.createObjectNode();
+		decorator.decorate(checkIn);
+		Assertions.assertThat(checkIn.path("gcTestCountDelta").asLong()).isEqualTo(4);
+		Assertions.assertThat(checkIn.path("gcTestTimeMillisDelta").asLong()).isEqualTo(40);
+	}
+}
@@ -0,0 +1,70 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class LockContentionDecoratorTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	Object monitor = new Object();
+
+	@Test
+	public void testBlockedThread() throws InterruptedException {
+		LockContentionDecorator decorator = new LockContentionDecorator(ManagementFactory.getThreadMXBean(), 3, 0,
+				TimeUnit.SECONDS);
+
+		CountDownLatch go = new CountDownLatch(1);
+		Thread t = new Thread(() -> {
+			try {
+				go.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (monitor) {
+				monitor.hashCode();
+			}
+		}, "test-contender");
+		t.start();
+		while (t.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+
+		ObjectNode baseline = mapper.createObjectNode();
+		decorator.decorate(baseline);
+
+		ObjectNode status = mapper.createObjectNode();
+		synchronized (monitor) {
+			go.countDown();
+			while (t.getState() != Thread.State.BLOCKED) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(100);
+			decorator.decorate(status);
+		}
+		t.join();
+
+		Assertions.assertThat(status.path("contendedLock1Class").asText()).isEqualTo("java.lang.Object");
+		Assertions.assertThat(status.path("contendedLock1Owner").asText()).isEqualTo(Thread.currentThread().getName());
+		Assertions.assertThat(status.path("contendedLock1BlockedCount").asLong()).isEqualTo(1);
+		Assertions.assertThat(status.path("contendedLock1BlockedMillis").asLong()).isGreaterThanOrEqualTo(50);
+		Assertions.assertThat(status.path("contendedLock1TopThreads").asText()).startsWith("test-contender=");
+	}
+
+	@Test
+	public void testInterval() {
+		LockContentionDecorator decorator = new LockContentionDecorator(ManagementFactory.getThreadMXBean(), 3, 1,
+				TimeUnit.HOURS);
+		decorator.decorate(mapper.createObjectNode());
+		ObjectNode report = decorator.report;
+		decorator.decorate(mapper.createObjectNode());
+		Assertions.assertThat(decorator.report).isSameAs(report);
+	}
+}
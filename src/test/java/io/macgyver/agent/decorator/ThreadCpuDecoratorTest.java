@@ -0,0 +1,59 @@
+package io.macgyver.agent.decorator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ThreadCpuDecoratorTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	volatile boolean spinning = true;
+
+	@Test
+	public void testTop() {
+		Assertions.assertThat(ThreadCpuDecorator.top(new long[] { 5, 0, 9, 3, 9, -1, 7 }, 3)).containsExactly(2, 4, 6);
+		Assertions.assertThat(ThreadCpuDecorator.top(new long[] { 0, 2 }, 5)).containsExactly(1);
+		Assertions.assertThat(ThreadCpuDecorator.top(new long[] { 1, 2 }, 0)).isEmpty();
+	}
+
+	@Test
+	public void testHotThread() throws InterruptedException {
+		ThreadCpuDecorator decorator = new ThreadCpuDecorator(ManagementFactory.getThreadMXBean(), 3, 0,
+				TimeUnit.SECONDS);
+		ObjectNode baseline = mapper.createObjectNode();
+		decorator.decorate(baseline);
+		Assertions.assertThat(baseline.path("threadCount").asInt()).isGreaterThan(0);
+		Assertions.assertThat(baseline.has("cpuTopThread1Name")).isFalse();
+
+		Thread t = new Thread(() -> {
+			long n = 0;
+			while (spinning) {
+				n++;
+				if (n % 1000 == 0) {
+					new StringBuilder().append(n).toString();
+				}
+			}
+		}, "test-hot");
+		t.start();
+		Thread.sleep(300);
+
+		ObjectNode status = mapper.createObjectNode();
+		decorator.decorate(status);
+		spinning = false;
+		t.join();
+
+		Assertions.assertThat(status.path("cpuTopThread1Name").asText()).isEqualTo("test-hot");
+		Assertions.assertThat(status.path("cpuTopThread1CpuMillis").asLong()).isGreaterThan(100);
+		Assertions.assertThat(status.path("threadCpuMillis").asLong())
+				.isGreaterThanOrEqualTo(status.path("cpuTopThread1CpuMillis").asLong());
+		Assertions.assertThat(status.path("threadAllocatedBytes").asLong()).isGreaterThan(0);
+		Assertions.assertThat(status.has("allocTopThread1Name")).isTrue();
+		Assertions.assertThat(status.path("threadStatsIntervalMillis").asLong()).isGreaterThanOrEqualTo(300);
+	}
+}
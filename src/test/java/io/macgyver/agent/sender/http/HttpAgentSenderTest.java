@@ -6,9 +6,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.macgyver.agent.AgentException;
+import io.macgyver.agent.AppEvent;
 import io.macgyver.agent.AppEventBuilder;
 import io.macgyver.agent.AppMetadataProvider;
+import io.macgyver.agent.BackpressureException;
 import io.macgyver.agent.MacGyverAgent;
+import io.macgyver.agent.codec.GzipCodec;
+import io.macgyver.agent.sender.WireFormat;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -18,10 +22,12 @@ import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 public class HttpAgentSenderTest {
@@ -52,6 +58,204 @@ public class HttpAgentSenderTest {
 
 	}
 
+	@Test
+	public void testChangeAwareCheckIns() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setResponseCode(409));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		MacGyverAgent agent = new MacGyverAgent().withChangeAwareCheckIns(10);
+		agent.withSender(new HttpAgentSender().withBaseUrl(mockServer.url("/").toString()));
+
+		agent.reportCheckIn();
+		JsonNode full = mapper.readTree(mockServer.takeRequest().getBody().readUtf8());
+		Assertions.assertThat(full.has("osName")).isTrue();
+		Assertions.assertThat(full.has("heartbeat")).isFalse();
+		String hash = full.path("contentHash").asText();
+		Assertions.assertThat(hash).hasSize(16);
+
+		agent.reportCheckIn();
+		JsonNode heartbeat = mapper.readTree(mockServer.takeRequest().getBody().readUtf8());
+		Assertions.assertThat(heartbeat.path("heartbeat").asBoolean()).isTrue();
+		Assertions.assertThat(heartbeat.path("contentHash").asText()).isEqualTo(hash);
+		Assertions.assertThat(heartbeat.has("host")).isTrue();
+		Assertions.assertThat(heartbeat.has("timestamp")).isTrue();
+		Assertions.assertThat(heartbeat.has("osName")).isFalse();
+
+		// the server doesn't know the hash, so the next check-in is full again
+		agent.reportCheckIn();
+		Assertions.assertThat(mapper.readTree(mockServer.takeRequest().getBody().readUtf8()).path("heartbeat")
+				.asBoolean()).isTrue();
+		agent.reportCheckIn();
+		full = mapper.readTree(mockServer.takeRequest().getBody().readUtf8());
+		Assertions.assertThat(full.has("osName")).isTrue();
+		Assertions.assertThat(full.path("contentHash").asText()).isEqualTo(hash);
+	}
+
+	@Test
+	public void testBackpressure() throws InterruptedException {
+
+		mockServer.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString());
+
+		try {
+			sender.sendCheckIn(mapper.createObjectNode());
+			Assertions.fail("expected BackpressureException");
+		} catch (BackpressureException e) {
+			Assertions.assertThat(e.getRetryAfterMillis()).isEqualTo(120000);
+		}
+
+		Assertions.assertThat(HttpAgentSender.parseRetryAfter(null)).isEqualTo(-1);
+		Assertions.assertThat(HttpAgentSender.parseRetryAfter("soon")).isEqualTo(-1);
+		Assertions.assertThat(HttpAgentSender.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT")).isEqualTo(0);
+	}
+
+	@Test
+	public void testIdempotencyKey() throws InterruptedException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString());
+
+		ObjectNode n = mapper.createObjectNode();
+		sender.sendCheckIn(n);
+		Assertions.assertThat(mockServer.takeRequest().getHeader("Idempotency-Key")).isNull();
+
+		n.put(MacGyverAgent.IDEMPOTENCY_KEY_ATTRIBUTE, "abc");
+		sender.sendCheckIn(n);
+		Assertions.assertThat(mockServer.takeRequest().getHeader("Idempotency-Key")).isEqualTo("abc");
+	}
+
+	@Test
+	public void testStreamingAppEvent() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString());
+
+		sender.sendAppEvent(new AppEvent().withMessage("hello").withAttribute("idempotencyKey", "k1"));
+
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getPath()).isEqualTo(HttpAgentSender.DEFAULT_APP_EVENT_PATH);
+		Assertions.assertThat(rr.getHeader("Idempotency-Key")).isEqualTo("k1");
+		Assertions.assertThat(rr.getBody().readUtf8()).isEqualTo("{\"message\":\"hello\",\"idempotencyKey\":\"k1\"}");
+	}
+
+	@Test
+	public void testStreamingBody() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString());
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("message", "caf\u00e9");
+		sender.sendAppEvent(n);
+
+		RecordedRequest rr = mockServer.takeRequest();
+
+		Assertions.assertThat(rr.getHeader("transfer-encoding")).isEqualTo("chunked");
+		Assertions.assertThat(rr.getHeader("content-type")).contains("application/json");
+		Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8()).path("message").asText()).isEqualTo("caf\u00e9");
+	}
+
+	@Test
+	public void testGzipCodec() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withCodec(new GzipCodec(), 100);
+
+		ObjectNode small = mapper.createObjectNode();
+		small.put("message", "small");
+		sender.sendAppEvent(small);
+
+		ObjectNode large = mapper.createObjectNode();
+		large.put("message", String.join("", Collections.nCopies(100, "large")));
+		sender.sendAppEvent(large);
+
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-encoding")).isNull();
+		Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8()).path("message").asText()).isEqualTo("small");
+
+		rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-encoding")).isEqualTo("gzip");
+		JsonNode n = mapper.readTree(new GZIPInputStream(rr.getBody().inputStream()));
+		Assertions.assertThat(n.path("message").asText()).startsWith("largelarge");
+	}
+
+	@Test
+	public void testWireFormat() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setResponseCode(415));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withWireFormat(WireFormat.SMILE);
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("message", "caf\u00e9");
+		n.put("count", 42);
+		sender.sendCheckIn(n);
+
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-type")).isEqualTo("application/x-jackson-smile");
+		Assertions.assertThat(WireFormat.SMILE.getObjectMapper().readTree(rr.getBody().readByteArray())).isEqualTo(n);
+
+		// a server that doesn't understand Smile gets JSON from then on
+		sender.sendCheckIn(n);
+		Assertions.assertThat(mockServer.takeRequest().getHeader("content-type"))
+				.isEqualTo("application/x-jackson-smile");
+		rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-type")).contains("application/json");
+		Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8())).isEqualTo(n);
+
+		sender.sendCheckIn(n);
+		Assertions.assertThat(mockServer.takeRequest().getHeader("content-type")).contains("application/json");
+	}
+
+	@Test
+	public void testWireFormatWithCodec() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withWireFormat(WireFormat.CBOR).withCodec(new GzipCodec(), 100);
+
+		ObjectNode small = mapper.createObjectNode().put("message", "small");
+		sender.sendCheckIn(small);
+		ObjectNode large = mapper.createObjectNode().put("message", String.join("", Collections.nCopies(100, "large")));
+		sender.sendCheckIn(large);
+
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-type")).isEqualTo("application/cbor");
+		Assertions.assertThat(rr.getHeader("content-length")).isNotNull();
+		Assertions.assertThat(WireFormat.CBOR.getObjectMapper().readTree(rr.getBody().readByteArray())).isEqualTo(small);
+
+		rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-type")).isEqualTo("application/cbor");
+		Assertions.assertThat(rr.getHeader("content-encoding")).isEqualTo("gzip");
+		Assertions.assertThat(WireFormat.CBOR.getObjectMapper().readTree(new GZIPInputStream(rr.getBody().inputStream())))
+				.isEqualTo(large);
+	}
+
+	@Test
+	public void testCodecRejected() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setResponseCode(415));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withCodec(new GzipCodec(), 0);
+
+		sender.sendAppEvent(new AppEventBuilder().withMessage("hello").build());
+
+		Assertions.assertThat(mockServer.takeRequest().getHeader("content-encoding")).isEqualTo("gzip");
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-encoding")).isNull();
+		Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8()).path("message").asText()).isEqualTo("hello");
+	}
+
 	@Test
 	public void testAppEvent() throws InterruptedException, JsonProcessingException, IOException {
 
@@ -92,6 +296,7 @@ public class HttpAgentSenderTest {
 		RecordedRequest rr = mockServer.takeRequest();
 
 		Assertions.assertThat(rr.getRequestLine()).isEqualTo("POST /api/monitor/thread-dump HTTP/1.1");
+		Assertions.assertThat(rr.getHeader("transfer-encoding")).isEqualTo("chunked");
 
 		Assertions.assertThat(rr.getHeader("content-type")).contains("application/json");
 
@@ -112,6 +317,54 @@ public class HttpAgentSenderTest {
 		Assertions.assertThat(lines.stream().anyMatch(p -> p.contains("state=RUNNABLE"))).isTrue();
 	}
 
+	@Test
+	public void testThreadDumpWithCodec() throws InterruptedException, IOException {
+
+		MacGyverAgent agent = new MacGyverAgent();
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		agent.withSender(new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withCodec(new GzipCodec(), 100));
+		agent.reportThreadDump();
+
+		RecordedRequest rr = mockServer.takeRequest();
+		Assertions.assertThat(rr.getHeader("content-encoding")).isEqualTo("gzip");
+		JsonNode n = mapper.readTree(new GZIPInputStream(rr.getBody().inputStream()));
+
+		// the body is compressed already, so the dump inside it is only stored
+		byte[] gzip = Base64.getDecoder().decode(n.get("threadDumpGzip").asText());
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(gzip));
+		byte[] buf = new byte[8192];
+		for (int len; (len = gis.read(buf)) >= 0;) {
+			text.write(buf, 0, len);
+		}
+		Assertions.assertThat(gzip.length).isGreaterThan(text.size());
+		Assertions.assertThat(text.toString("UTF-8")).contains("state=RUNNABLE");
+	}
+
+	@Test
+	public void testBinaryThreadDump() throws InterruptedException, IOException {
+
+		for (WireFormat format : new WireFormat[] { WireFormat.SMILE, WireFormat.CBOR }) {
+			MacGyverAgent agent = new MacGyverAgent();
+			mockServer.enqueue(new MockResponse().setBody("{}"));
+			agent.withSender(new HttpAgentSender().withBaseUrl(mockServer.url("/").toString()).withWireFormat(format));
+			agent.reportThreadDump();
+
+			RecordedRequest rr = mockServer.takeRequest();
+			JsonNode n = format.getObjectMapper().readTree(rr.getBody().readByteArray());
+			Assertions.assertThat(n.has("host")).isTrue();
+
+			// the gzipped dump is sent as binary, which still reads as base64 text
+			JsonNode dump = n.get("threadDumpGzip");
+			Assertions.assertThat(dump.isBinary()).as(format.name()).isTrue();
+			Assertions.assertThat(Base64.getDecoder().decode(dump.asText())).isEqualTo(dump.binaryValue());
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(dump.binaryValue()))));
+			Assertions.assertThat(reader.lines().anyMatch(p -> p.contains("state=RUNNABLE"))).isTrue();
+		}
+	}
+
 	@Test
 	public void testAppConfigDump() throws InterruptedException, IOException {
 
@@ -158,6 +411,122 @@ public class HttpAgentSenderTest {
 
 	}
 
+	@Test
+	public void testAppEventBatching() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withAppEventBatching(3, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+		for (int i = 0; i < 3; i++) {
+			sender.sendAppEvent(new AppEventBuilder().withMessage("message " + i).build());
+		}
+
+		RecordedRequest rr = mockServer.takeRequest();
+
+		Assertions.assertThat(rr.getRequestLine()).isEqualTo("POST /api/cmdb/app-event/batch HTTP/1.1");
+
+		JsonNode n = mapper.readTree(rr.getBody().readUtf8());
+
+		Assertions.assertThat(n.isArray()).isTrue();
+		Assertions.assertThat(n.size()).isEqualTo(3);
+		Assertions.assertThat(n.get(2).path("message").asText()).isEqualTo("message 2");
+	}
+
+	@Test
+	public void testAppEventBatchLinger() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withAppEventBatching(100, 1024 * 1024, 50, TimeUnit.MILLISECONDS);
+
+		sender.sendAppEvent(new AppEventBuilder().withMessage("lonely").build());
+
+		RecordedRequest rr = mockServer.takeRequest(5, TimeUnit.SECONDS);
+
+		Assertions.assertThat(rr.getRequestLine()).isEqualTo("POST /api/cmdb/app-event/batch HTTP/1.1");
+		Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8()).get(0).path("message").asText())
+				.isEqualTo("lonely");
+	}
+
+	@Test
+	public void testAppEventBatchFallback() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setResponseCode(404));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withAppEventBatching(2, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+		sender.sendAppEvent(new AppEventBuilder().withMessage("a").build());
+		sender.sendAppEvent(new AppEventBuilder().withMessage("b").build());
+		sender.sendAppEvent(new AppEventBuilder().withMessage("c").build());
+
+		Assertions.assertThat(mockServer.takeRequest().getPath()).isEqualTo("/api/cmdb/app-event/batch");
+		for (String message : Arrays.asList("a", "b", "c")) {
+			RecordedRequest rr = mockServer.takeRequest();
+			Assertions.assertThat(rr.getPath()).isEqualTo("/api/cmdb/app-event");
+			Assertions.assertThat(mapper.readTree(rr.getBody().readUtf8()).path("message").asText())
+					.isEqualTo(message);
+		}
+	}
+
+	@Test
+	public void testAppEventBatchFailureIsRetried() throws InterruptedException, IOException {
+
+		mockServer.enqueue(new MockResponse().setResponseCode(503));
+		mockServer.enqueue(new MockResponse().setBody("{}"));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withAppEventBatching(2, 1024 * 1024, 1, TimeUnit.MINUTES);
+		MacGyverAgent agent = new MacGyverAgent().withRetries(3, 10, 10, TimeUnit.MILLISECONDS);
+		agent.withSender(sender);
+		try {
+			agent.reportAppEvent(new AppEventBuilder().withMessage("a"));
+			agent.reportAppEvent(new AppEventBuilder().withMessage("b"));
+
+			JsonNode failed = mapper.readTree(mockServer.takeRequest().getBody().readUtf8());
+			RecordedRequest rr = mockServer.takeRequest(5, TimeUnit.SECONDS);
+			Assertions.assertThat(rr.getPath()).isEqualTo("/api/cmdb/app-event/batch");
+			JsonNode retried = mapper.readTree(rr.getBody().readUtf8());
+
+			// the same events, with the same idempotency keys
+			Set<String> keys = new HashSet<>();
+			for (JsonNode event : failed) {
+				keys.add(event.path("idempotencyKey").asText());
+			}
+			Assertions.assertThat(retried.size()).isEqualTo(2);
+			for (JsonNode event : retried) {
+				Assertions.assertThat(keys).contains(event.path("idempotencyKey").asText());
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (agent.getSenderHealth(sender).getSuccessCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assertions.assertThat(agent.getSenderHealth(sender).getFailureCount()).isEqualTo(1);
+			Assertions.assertThat(agent.getSenderHealth(sender).getSuccessCount()).isEqualTo(1);
+			Assertions.assertThat(agent.getSenderHealth(sender).getLastError()).contains("503");
+			Assertions.assertThat(sender.getDroppedAppEventBatchCount()).isEqualTo(0);
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testAppEventBatchFailureWithoutAgent() throws InterruptedException {
+
+		mockServer.enqueue(new MockResponse().setResponseCode(503));
+		HttpAgentSender sender = new HttpAgentSender().withBaseUrl(mockServer.url("/").toString())
+				.withAppEventBatching(2, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+		sender.sendAppEvent(new AppEventBuilder().withMessage("a").build());
+		sender.sendAppEvent(new AppEventBuilder().withMessage("b").build());
+
+		mockServer.takeRequest();
+		Assertions.assertThat(sender.getDroppedAppEventBatchCount()).isEqualTo(1);
+	}
+
 	@Test
 	public void testConnectException() {
 		try {
@@ -1,14 +1,33 @@
 package io.macgyver.agent.sender.sns;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.macgyver.agent.AppEvent;
+import io.macgyver.agent.AppEventBuilder;
+import io.macgyver.agent.MacGyverAgent;
+import io.macgyver.agent.codec.GzipCodec;
+import io.macgyver.agent.sender.WireFormat;
 import io.macgyver.agent.sender.http.HttpAgentSender;
 import io.macgyver.agent.sender.sns.SnsAgentSender;
 
@@ -47,4 +66,198 @@ public class SnsAgentSenderTest {
 			Assertions.assertThat(e).isInstanceOf(IllegalStateException.class).hasMessageContaining("SNS client not set");
 		}
 	}
+
+	@Test
+	public void testAggregation() throws IOException {
+		List<String> published = new ArrayList<>();
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender sender = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				published.add(message);
+			}
+		}.withAmazonSNSClient(client).withTopicArn("blah").withAggregation(300, 1, TimeUnit.MINUTES);
+
+		for (int i = 0; i < 10; i++) {
+			ObjectNode n = mapper.createObjectNode();
+			n.put("message", "message " + i);
+			sender.sendAppEvent(n);
+		}
+		sender.flush();
+
+		Assertions.assertThat(published.size()).isGreaterThan(1).isLessThan(10);
+
+		List<String> messages = new ArrayList<>();
+		for (String message : published) {
+			Assertions.assertThat(message.getBytes("UTF-8").length).isLessThanOrEqualTo(300);
+			JsonNode envelopes = mapper.readTree(message);
+			Assertions.assertThat(envelopes.isArray()).isTrue();
+			for (JsonNode envelope : envelopes) {
+				Assertions.assertThat(envelope.path("messageType").asText()).isEqualTo("APP_EVENT");
+				messages.add(envelope.path("data").path("message").asText());
+			}
+		}
+		Assertions.assertThat(messages).hasSize(10).startsWith("message 0").endsWith("message 9");
+	}
+
+	@Test
+	public void testHungTopicDoesNotHoldUpOtherSenders() throws InterruptedException {
+		CountDownLatch hung = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch published = new CountDownLatch(1);
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender slow = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				hung.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}.withAmazonSNSClient(client).withTopicArn("slow").withAggregation(64 * 1024, 10, TimeUnit.MILLISECONDS);
+		SnsAgentSender fast = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				published.countDown();
+			}
+		}.withAmazonSNSClient(client).withTopicArn("fast").withAggregation(64 * 1024, 10, TimeUnit.MILLISECONDS);
+
+		try {
+			slow.sendAppEvent(mapper.createObjectNode().put("message", "slow"));
+			Assertions.assertThat(hung.await(5, TimeUnit.SECONDS)).isTrue();
+
+			// the slow sender's linger flush is stuck, the fast one's still goes out
+			fast.sendAppEvent(mapper.createObjectNode().put("message", "fast"));
+			Assertions.assertThat(published.await(5, TimeUnit.SECONDS)).isTrue();
+		} finally {
+			release.countDown();
+			slow.close();
+			fast.close();
+		}
+	}
+
+	@Test
+	public void testFailedAggregateIsRetried() throws IOException, InterruptedException {
+		List<String> published = new CopyOnWriteArrayList<>();
+		AtomicInteger attempts = new AtomicInteger();
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender sender = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				if (attempts.incrementAndGet() == 1) {
+					AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+					e.setErrorCode("Throttling");
+					throw e;
+				}
+				published.add(message);
+			}
+		}.withAmazonSNSClient(client).withTopicArn("blah").withAggregation(64 * 1024, 50, TimeUnit.MILLISECONDS);
+		MacGyverAgent agent = new MacGyverAgent().withRetries(3, 10, 10, TimeUnit.MILLISECONDS);
+		agent.withSender(sender);
+		try {
+			agent.reportAppEvent(new AppEventBuilder().withMessage("a"));
+			agent.reportAppEvent(new AppEventBuilder().withMessage("b"));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (agent.getSenderHealth(sender).getSuccessCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			List<String> messages = new ArrayList<>();
+			for (String message : published) {
+				for (JsonNode envelope : mapper.readTree(message)) {
+					messages.add(envelope.path("data").path("message").asText());
+				}
+			}
+			Assertions.assertThat(messages).containsOnly("a", "b").hasSize(2);
+			Assertions.assertThat(agent.getSenderHealth(sender).getFailureCount()).isEqualTo(1);
+			Assertions.assertThat(agent.getSenderHealth(sender).getLastError()).contains("BackpressureException")
+					.contains("Rate exceeded");
+			Assertions.assertThat(sender.getDroppedBatchCount()).isEqualTo(0);
+		} finally {
+			agent.stop();
+		}
+	}
+
+	@Test
+	public void testCodec() throws IOException {
+		List<String> published = new ArrayList<>();
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender sender = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				published.add(message);
+			}
+		}.withAmazonSNSClient(client).withTopicArn("blah").withCodec(new GzipCodec(), 0);
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("message", "hello");
+		sender.sendCheckIn(n);
+
+		JsonNode envelope = mapper.readTree(published.get(0));
+		Assertions.assertThat(envelope.path("messageType").asText()).isEqualTo("APP_CHECK_IN");
+		Assertions.assertThat(envelope.has("data")).isFalse();
+		Assertions.assertThat(envelope.path("contentEncoding").asText()).isEqualTo("gzip");
+
+		byte[] gzip = Base64.getDecoder().decode(envelope.path("encodedData").asText());
+		JsonNode data = mapper.readTree(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+		Assertions.assertThat(data.path("message").asText()).isEqualTo("hello");
+	}
+
+	@Test
+	public void testWireFormat() throws IOException {
+		List<String> published = new ArrayList<>();
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender sender = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				published.add(message);
+			}
+		}.withAmazonSNSClient(client).withTopicArn("blah").withWireFormat(WireFormat.SMILE);
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("message", "hello");
+		sender.sendCheckIn(n);
+
+		JsonNode envelope = mapper.readTree(published.get(0));
+		Assertions.assertThat(envelope.has("data")).isFalse();
+		Assertions.assertThat(envelope.has("contentEncoding")).isFalse();
+		Assertions.assertThat(envelope.path("contentType").asText()).isEqualTo("application/x-jackson-smile");
+		byte[] smile = Base64.getDecoder().decode(envelope.path("encodedData").asText());
+		Assertions.assertThat(WireFormat.SMILE.getObjectMapper().readTree(smile)).isEqualTo(n);
+	}
+
+	@Test
+	public void testStreamingAppEvent() throws IOException {
+		List<String> published = new ArrayList<>();
+
+		AmazonSNSClient client = new AmazonSNSClient(new DefaultAWSCredentialsProviderChain());
+		SnsAgentSender sender = new SnsAgentSender() {
+
+			@Override
+			protected void publish(String topic, String message) {
+				published.add(message);
+			}
+		}.withAmazonSNSClient(client).withTopicArn("blah");
+
+		sender.sendAppEvent(new AppEvent().withMessage("hello"));
+
+		JsonNode envelope = mapper.readTree(published.get(0));
+		Assertions.assertThat(envelope.path("messageType").asText()).isEqualTo("APP_EVENT");
+		Assertions.assertThat(envelope.path("ts").asLong()).isGreaterThan(0);
+		Assertions.assertThat(envelope.path("data").path("message").asText()).isEqualTo("hello");
+	}
 }